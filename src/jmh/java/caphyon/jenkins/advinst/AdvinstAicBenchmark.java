@@ -0,0 +1,70 @@
+package caphyon.jenkins.advinst;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.FilePath;
+
+/**
+ * Creation of the UTF-16 AIC command file. Run with "-prof gc" to also see
+ * the memory used for large command sets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AdvinstAicBenchmark {
+
+  @Param({"100", "10000", "100000"})
+  public int commandCount;
+
+  private FilePath mWorkspace;
+  private List<String> mCommands;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, InterruptedException {
+    mWorkspace = new FilePath(Files.createTempDirectory("benchmark").toFile());
+    mCommands = new ArrayList<String>(commandCount);
+    for (int i = 0; i < commandCount; i++) {
+      mCommands.add(String.format("AddFile APPDIR\\bin \"C:\\build\\output\\file%d.dll\"", i));
+    }
+
+    // The workspace is local, so this is the path of the builds on the built-in
+    // node. Fail the trial at once if it is broken instead of timing errors.
+    if (createAicFile() <= 0) {
+      throw new IllegalStateException("The AIC file is empty");
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, InterruptedException {
+    mWorkspace.deleteRecursive();
+  }
+
+  @Benchmark
+  public long createAicFile() throws IOException, InterruptedException {
+    final FilePath aicFile = AdvinstTool.createAicFile(mWorkspace, mCommands);
+    final long length = aicFile.length();
+    aicFile.delete();
+    return length;
+  }
+}
@@ -0,0 +1,88 @@
+package caphyon.jenkins.advinst;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Compares the streaming AIP reader with the previous DOM + XPath
+ * implementation. Run with "-prof gc" to also compare the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class AdvinstAipReaderBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int aipSizeMb;
+
+  private Path mAipFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mAipFile = AipGenerator.generate(Files.createTempFile("benchmark", ".aip"), aipSizeMb * 1024L * 1024L);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(mAipFile);
+  }
+
+  @Benchmark
+  public List<String> streaming() throws Exception {
+    try (InputStream is = Files.newInputStream(mAipFile)) {
+      return AdvinstAipReader.readAipInfo(is).getBuilds();
+    }
+  }
+
+  @Benchmark
+  public List<String> dom() throws Exception {
+    String aipContent = new String(Files.readAllBytes(mAipFile), StandardCharsets.UTF_8);
+    aipContent = aipContent.replace("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>",
+        "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+    Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new InputSource(new StringReader(aipContent)));
+
+    NodeList buildRows = (NodeList) XPathFactory.newInstance().newXPath().evaluate(
+        "/DOCUMENT/COMPONENT[@cid='caphyon.advinst.msicomp.BuildComponent']/ROW", document, XPathConstants.NODESET);
+    List<String> builds = new ArrayList<String>();
+    for (int i = 0; i < buildRows.getLength(); i++) {
+      Attr nameAttr = (Attr) buildRows.item(i).getAttributes().getNamedItem("BuildName");
+      if (null != nameAttr) {
+        builds.add(nameAttr.getValue());
+      }
+    }
+    return builds;
+  }
+}
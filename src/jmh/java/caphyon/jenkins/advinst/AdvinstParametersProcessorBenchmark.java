@@ -0,0 +1,84 @@
+package caphyon.jenkins.advinst;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+
+/**
+ * Command generation with macro expansion against large build environments.
+ * Each extra command references an environment variable. The AIP is read once
+ * during setup, so the benchmark measures the cached path used by builds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AdvinstParametersProcessorBenchmark {
+
+  @Param({"100", "10000"})
+  public int envVarCount;
+
+  @Param({"10", "1000", "10000"})
+  public int commandCount;
+
+  private Path mWorkspace;
+  private AdvinstParametersProcessor mProcessor;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    mWorkspace = Files.createTempDirectory("benchmark");
+    final Path aipFile = AipGenerator.generate(mWorkspace.resolve("project.aip"), 1024L * 1024L);
+
+    EnvVars env = new EnvVars();
+    for (int i = 0; i < envVarCount; i++) {
+      env.put("VAR_" + i, "value of variable " + i);
+    }
+
+    StringBuilder extraCommands = new StringBuilder();
+    for (int i = 0; i < commandCount; i++) {
+      extraCommands.append("SetProperty PROP_").append(i).append("=\"${VAR_").append(i % envVarCount)
+          .append("}\"\r\n");
+    }
+
+    AdvinstParameters parameters = new AdvinstParameters();
+    parameters.set(AdvinstConsts.AdvinstParamAipBuild, AipGenerator.kBuildNames[0]);
+    parameters.set(AdvinstConsts.AdvinstParamAipOutputFolder, "${VAR_0}\\output");
+    parameters.set(AdvinstConsts.AdvinstParamAipOutputName, "setup-${VAR_1}");
+    parameters.set(AdvinstConsts.AdvinstParamExtraCommands, extraCommands.toString());
+
+    mProcessor = new AdvinstParametersProcessor(parameters, new FilePath(aipFile.toFile()),
+        new FilePath(mWorkspace.toFile()), env);
+    mProcessor.getCommands();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, InterruptedException {
+    new FilePath(mWorkspace.toFile()).deleteRecursive();
+  }
+
+  @Benchmark
+  public List<String> getCommands() throws AdvinstException {
+    return mProcessor.getCommands();
+  }
+}
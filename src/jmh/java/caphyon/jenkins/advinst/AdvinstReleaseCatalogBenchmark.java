@@ -0,0 +1,53 @@
+package caphyon.jenkins.advinst;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the updates.ini release catalog and the deprecation check done
+ * by the tool installer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AdvinstReleaseCatalogBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int releaseCount;
+
+  private String mContent;
+  private List<AdvinstReleaseCatalog.Release> mReleases;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mContent = UpdatesIniGenerator.generate(releaseCount);
+    mReleases = AdvinstReleaseCatalog.parse(mContent);
+  }
+
+  @Benchmark
+  public List<AdvinstReleaseCatalog.Release> parse() throws IOException {
+    return AdvinstReleaseCatalog.parse(mContent);
+  }
+
+  @Benchmark
+  public boolean isDeprecated() {
+    return new AdvinstVersions(mReleases).isDeprecated("20.0");
+  }
+}
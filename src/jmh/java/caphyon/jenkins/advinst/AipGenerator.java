@@ -0,0 +1,54 @@
+package caphyon.jenkins.advinst;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates synthetic AIP files of a given size for benchmarks.
+ *
+ * The file table is written before the build component, so a reader has to go
+ * through the whole project before it finds the builds.
+ */
+final class AipGenerator {
+
+  static final String[] kBuildNames = {"x86 MSI", "x64 MSI", "ARM64 MSI", "x86 EXE", "x64 EXE", "MSIX"};
+
+  private AipGenerator() {
+  }
+
+  static Path generate(final Path target, final long sizeBytes) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+      writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n");
+      writer.write("<DOCUMENT Type=\"Advanced Installer\" CreateVersion=\"21.8.1\" version=\"21.8.1\" "
+          + "Modules=\"enterprise\" RootPath=\".\" Language=\"en\" Id=\"{00000000-0000-0000-0000-000000000000}\">\r\n");
+      writer.write("  <COMPONENT cid=\"caphyon.advinst.msicomp.MsiPropsComponent\">\r\n");
+      writer.write("    <ROW Property=\"ProductName\" Value=\"Benchmark&#1;\"/>\r\n");
+      writer.write("    <ROW Property=\"ProductVersion\" Value=\"1.0.0\" Type=\"32\"/>\r\n");
+      writer.write("  </COMPONENT>\r\n");
+      writer.write("  <COMPONENT cid=\"caphyon.advinst.msicomp.MsiFilesComponent\">\r\n");
+
+      long written = 0;
+      for (int i = 0; written < sizeBytes; i++) {
+        final String row = String.format("    <ROW File=\"file%1$d.dll\" Component_=\"file%1$d.dll\" "
+            + "FileName=\"file%1$d.dll\" Attributes=\"0\" SourcePath=\"..\\bin\\Release\\file%1$d.dll\" "
+            + "SelfReg=\"false\"/>\r\n", i);
+        writer.write(row);
+        written += row.length();
+      }
+      writer.write("  </COMPONENT>\r\n");
+
+      writer.write("  <COMPONENT cid=\"caphyon.advinst.msicomp.BuildComponent\">\r\n");
+      for (String buildName : kBuildNames) {
+        writer.write(String.format("    <ROW BuildKey=\"%1$s\" BuildName=\"%1$s\" BuildOrder=\"1\" "
+            + "BuildType=\"0\" PackageFolder=\"Setup Files\" Languages=\"en\" InstallationType=\"4\"/>\r\n",
+            buildName));
+      }
+      writer.write("  </COMPONENT>\r\n");
+      writer.write("</DOCUMENT>\r\n");
+    }
+    return target;
+  }
+}
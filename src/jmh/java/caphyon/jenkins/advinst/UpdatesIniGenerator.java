@@ -0,0 +1,35 @@
+package caphyon.jenkins.advinst;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Generates synthetic updates.ini catalogs with a given number of releases for
+ * benchmarks. Releases are listed newest first, one every two weeks, like the
+ * published catalog.
+ */
+final class UpdatesIniGenerator {
+
+  private static final DateTimeFormatter kReleaseDateFormat = DateTimeFormatter.ofPattern("dd/M/yyyy");
+
+  private UpdatesIniGenerator() {
+  }
+
+  static String generate(final int releaseCount) {
+    StringBuilder content = new StringBuilder();
+    LocalDate releaseDate = LocalDate.now();
+    for (int i = 0; i < releaseCount; i++) {
+      final String version = String.format("%d.%d.%d", 30 - i / 100, (i / 10) % 10, i % 10);
+      content.append("[Release_").append(version).append("]\r\n");
+      content.append("Name=Advanced Installer ").append(version).append("\r\n");
+      content.append("ProductVersion=").append(version).append("\r\n");
+      content.append("ReleaseDate=").append(releaseDate.format(kReleaseDateFormat)).append("\r\n");
+      content.append("URL=https://www.advancedinstaller.com/downloads/").append(version)
+          .append("/advinst.msi\r\n");
+      content.append("Size=").append(180000000 + i).append("\r\n");
+      content.append("\r\n");
+      releaseDate = releaseDate.minusWeeks(2);
+    }
+    return content.toString();
+  }
+}
@@ -0,0 +1,197 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLStreamException;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+
+/**
+ * Bounded LRU cache of the metadata extracted from AIP files. Entries are
+ * keyed by node and path and are validated against the file size and last
+ * modification time, so an unchanged project is never parsed twice.
+ *
+ * The maximum number of entries can be configured with the
+ * <code>caphyon.jenkins.advinst.AdvinstAipCache.maxEntries</code> system
+ * property.
+ */
+final class AdvinstAipCache {
+
+  static final int kDefaultMaxEntries = 256;
+
+  private static final AdvinstAipCache kInstance = new AdvinstAipCache(
+      SystemProperties.getInteger(AdvinstAipCache.class.getName() + ".maxEntries", kDefaultMaxEntries));
+
+  private final int mMaxEntries;
+  private final Map<Key, Snapshot> mEntries;
+  private final AtomicLong mHits = new AtomicLong();
+  private final AtomicLong mMisses = new AtomicLong();
+  private final AtomicLong mEvictions = new AtomicLong();
+
+  AdvinstAipCache(final int maxEntries) {
+    this.mMaxEntries = Math.max(maxEntries, 0);
+    this.mEntries = new LinkedHashMap<Key, Snapshot>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Key, Snapshot> eldest) {
+        if (size() > mMaxEntries) {
+          mEvictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  static AdvinstAipCache getInstance() {
+    return kInstance;
+  }
+
+  /**
+   * Get the metadata of the given AIP. The file is checked and, if it changed
+   * since it was cached, parsed in a single call on the node that holds it.
+   *
+   * @param aipFile Path to Advanced Installer project file (.AIP)
+   * @return the project metadata
+   */
+  AdvinstAipInfo get(final FilePath aipFile) throws IOException, InterruptedException {
+    final Key key = new Key(getNodeName(aipFile), aipFile.getRemote());
+
+    Snapshot cached;
+    synchronized (mEntries) {
+      cached = mEntries.get(key);
+    }
+
+    final Snapshot current = null == cached ? aipFile.act(new ReadAipInfoIfChanged(-1, -1))
+        : aipFile.act(new ReadAipInfoIfChanged(cached.mSize, cached.mLastModified));
+    if (null == current) {
+      mHits.incrementAndGet();
+      return cached.mAipInfo;
+    }
+
+    mMisses.incrementAndGet();
+    synchronized (mEntries) {
+      mEntries.put(key, current);
+    }
+    return current.mAipInfo;
+  }
+
+  void clear() {
+    synchronized (mEntries) {
+      mEntries.clear();
+    }
+  }
+
+  int size() {
+    synchronized (mEntries) {
+      return mEntries.size();
+    }
+  }
+
+  int getMaxEntries() {
+    return mMaxEntries;
+  }
+
+  long getHits() {
+    return mHits.get();
+  }
+
+  long getMisses() {
+    return mMisses.get();
+  }
+
+  long getEvictions() {
+    return mEvictions.get();
+  }
+
+  private static String getNodeName(final FilePath filePath) {
+    final Computer computer = filePath.toComputer();
+    return null == computer ? "" : computer.getName();
+  }
+
+  private static final class Key {
+    private final String mNodeName;
+    private final String mPath;
+
+    Key(final String nodeName, final String path) {
+      this.mNodeName = nodeName;
+      this.mPath = path;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return mNodeName.equals(other.mNodeName) && mPath.equals(other.mPath);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(mNodeName, mPath);
+    }
+  }
+
+  /** Metadata of an AIP along with the file state it was read from. */
+  private static final class Snapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long mSize;
+    private final long mLastModified;
+    private final AdvinstAipInfo mAipInfo;
+
+    Snapshot(final long size, final long lastModified, final AdvinstAipInfo aipInfo) {
+      this.mSize = size;
+      this.mLastModified = lastModified;
+      this.mAipInfo = aipInfo;
+    }
+  }
+
+  /**
+   * Returns null if the file still has the given size and modification time,
+   * otherwise parses the file and returns a new snapshot.
+   */
+  private static final class ReadAipInfoIfChanged extends MasterToSlaveFileCallable<Snapshot> {
+    private static final long serialVersionUID = 1L;
+
+    private final long mCachedSize;
+    private final long mCachedLastModified;
+
+    ReadAipInfoIfChanged(final long cachedSize, final long cachedLastModified) {
+      this.mCachedSize = cachedSize;
+      this.mCachedLastModified = cachedLastModified;
+    }
+
+    @Override
+    public Snapshot invoke(final File aipFile, final VirtualChannel channel) throws IOException {
+      final long size = aipFile.length();
+      final long lastModified = aipFile.lastModified();
+      if (mCachedSize == size && mCachedLastModified == lastModified) {
+        return null;
+      }
+
+      try (InputStream aipStream = Files.newInputStream(aipFile.toPath())) {
+        return new Snapshot(size, lastModified, AdvinstAipReader.readAipInfo(aipStream));
+      } catch (XMLStreamException ex) {
+        throw new IOException("Failed to parse " + aipFile + ": " + ex.getMessage(), ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package caphyon.jenkins.advinst;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Metadata extracted from an Advanced Installer project file (.AIP). It is
+ * computed on the node that holds the project and sent back to the controller,
+ * so it only contains the information the plugin needs.
+ */
+public final class AdvinstAipInfo implements Serializable {
+
+  private static final long serialVersionUID = 3162187254409826411L;
+
+  private final List<String> mBuilds;
+  private final String mProductVersion;
+  private final String mPackageType;
+
+  AdvinstAipInfo(final List<String> builds, final String productVersion, final String packageType) {
+    this.mBuilds = new ArrayList<String>(builds);
+    this.mProductVersion = productVersion;
+    this.mPackageType = packageType;
+  }
+
+  /**
+   * @return the names of the builds defined in the project
+   */
+  public List<String> getBuilds() {
+    return Collections.unmodifiableList(mBuilds);
+  }
+
+  /**
+   * @return the ProductVersion property of the project, or null if not set
+   */
+  public String getProductVersion() {
+    return mProductVersion;
+  }
+
+  /**
+   * @return the project type stored on the root element of the AIP, or null if
+   *         the file is not an Advanced Installer project
+   */
+  public String getPackageType() {
+    return mPackageType;
+  }
+}
@@ -6,34 +6,56 @@
 package caphyon.jenkins.advinst;
 
 import hudson.FilePath;
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import org.xml.sax.InputSource;
 
 /**
  * Utility class that extract information by reading the AIP file directly.
  *
+ * The AIP is parsed on the node that holds it and only the extracted
+ * {@link AdvinstAipInfo} is sent back. Results are kept in
+ * {@link AdvinstAipCache} so an unchanged project is not parsed again. The
+ * file is streamed and only read up to the point where the requested
+ * information was found, so memory usage does not depend on the project size.
+ *
  * @author Ciprian Burca
  */
 class AdvinstAipReader {
 
+  private static final String kDocumentElement = "DOCUMENT";
+  private static final String kComponentElement = "COMPONENT";
+  private static final String kRowElement = "ROW";
+  private static final String kBuildComponentId = "caphyon.advinst.msicomp.BuildComponent";
+  private static final String kPropsComponentId = "caphyon.advinst.msicomp.MsiPropsComponent";
+  private static final String kProductVersionProperty = "ProductVersion";
+  // Parts of the component ids holding merge modules and folders, any other
+  // source path is a file.
+  private static final String kMergeModuleComponentPart = "MergeMod";
+  private static final String kFolderComponentPart = "Folder";
+  private static final String kDirComponentPart = "Dirs";
+
+  // The AIP might contain special characters like &#1; which are invalid for
+  // XML 1.0, so the declaration is rewritten to XML 1.1 before parsing.
+  private static final byte[] kXml10Declaration = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+      .getBytes(StandardCharsets.UTF_8);
+  private static final byte[] kXml11Declaration = "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+      .getBytes(StandardCharsets.UTF_8);
+  private static final byte[] kUtf8Bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
   private final FilePath mAipFile;
-  private Document mXmlDocument = null;
+  private AdvinstAipInfo mAipInfo = null;
 
   /**
    * Class constructor.
@@ -51,68 +73,181 @@ class AdvinstAipReader {
    * @throws caphyon.jenkins.advinst.AdvinstException
    */
   public List<String> getBuilds() throws AdvinstException {
-    List<String> aipBuilds = new ArrayList<String>();
+    return getAipInfo().getBuilds();
+  }
 
-    loadXmlFile();
+  public boolean isValidAip() throws AdvinstException {
+    return null != getAipInfo().getPackageType();
+  }
+
+  /**
+   * Get the metadata extracted from the AIP.
+   *
+   * @return the project metadata
+   * @throws caphyon.jenkins.advinst.AdvinstException
+   */
+  public AdvinstAipInfo getAipInfo() throws AdvinstException {
+    if (null != mAipInfo) {
+      return mAipInfo;
+    }
 
-    final String buildsXPAth = "/DOCUMENT/COMPONENT[@cid='caphyon.advinst.msicomp.BuildComponent']/ROW";
-    XPath xPath = XPathFactory.newInstance().newXPath();
-    NodeList buildRows;
+    final long start = System.nanoTime();
     try {
-      buildRows = (NodeList) xPath.evaluate(buildsXPAth, mXmlDocument, XPathConstants.NODESET);
-    } catch (XPathExpressionException ex) {
-      throw new AdvinstException("Failed read AIP builds. Exception: " + ex.getMessage(), ex);
+      mAipInfo = AdvinstAipCache.getInstance().get(mAipFile);
+      AdvinstTimings.record(AdvinstTimings.kAipParsing, start);
+    } catch (IOException ex) {
+      throw new AdvinstException("Failed to load AIP file. Exception: " + ex.getMessage(), ex);
+    } catch (InterruptedException ex) {
+      throw new AdvinstException("Failed to load AIP file. Exception: " + ex.getMessage(), ex);
     }
-    for (int i = 0; i < buildRows.getLength(); i++) {
-      Node buildRow = buildRows.item(i);
-      Attr nameAttr = (Attr) buildRow.getAttributes().getNamedItem("BuildName");
-      if (null != nameAttr) {
-        aipBuilds.add(nameAttr.getValue());
+    return mAipInfo;
+  }
+
+  /**
+   * Stream the AIP content and collect the project metadata. Parsing stops as
+   * soon as both the properties and the build components were read.
+   *
+   * @param aipStream AIP file content
+   * @return the project metadata
+   */
+  static AdvinstAipInfo readAipInfo(final InputStream aipStream) throws IOException, XMLStreamException {
+    List<String> aipBuilds = new ArrayList<String>();
+    String productVersion = null;
+    String packageType = null;
+
+    XMLStreamReader reader = createXmlReader(aipStream);
+    try {
+      int depth = 0;
+      String componentId = null;
+      boolean buildsRead = false;
+      boolean propsRead = false;
+      while (reader.hasNext()) {
+        final int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+          // DOCUMENT is at depth 1, COMPONENT at depth 2 and ROW at depth 3.
+          if (depth == 1) {
+            if (!kDocumentElement.equals(reader.getLocalName())) {
+              break;
+            }
+            packageType = reader.getAttributeValue(null, "Type");
+          } else if (depth == 2 && kComponentElement.equals(reader.getLocalName())) {
+            componentId = reader.getAttributeValue(null, "cid");
+          } else if (depth == 3 && kRowElement.equals(reader.getLocalName())) {
+            if (kBuildComponentId.equals(componentId)) {
+              final String buildName = reader.getAttributeValue(null, "BuildName");
+              if (null != buildName) {
+                aipBuilds.add(buildName);
+              }
+            } else if (kPropsComponentId.equals(componentId)
+                && kProductVersionProperty.equals(reader.getAttributeValue(null, "Property"))) {
+              productVersion = reader.getAttributeValue(null, "Value");
+            }
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          if (depth == 2) {
+            buildsRead |= kBuildComponentId.equals(componentId);
+            propsRead |= kPropsComponentId.equals(componentId);
+            componentId = null;
+            if (buildsRead && propsRead) {
+              break;
+            }
+          }
+          depth--;
+        }
       }
+    } finally {
+      reader.close();
     }
 
-    return aipBuilds;
+    return new AdvinstAipInfo(aipBuilds, productVersion, packageType);
   }
 
-  public boolean isValidAip() throws AdvinstException {
-    loadXmlFile();
-    NodeList children = mXmlDocument.getChildNodes();
-    if (children.getLength() != 1) {
-      return false;
-    }
+  /**
+   * Stream the whole AIP content and index the source paths it references:
+   * the files, the folders and the merge modules.
+   *
+   * @param aipStream AIP file content
+   * @return index of the source paths
+   */
+  static AdvinstSourceIndex readSourceIndex(final InputStream aipStream) throws IOException, XMLStreamException {
+    AdvinstSourceIndex index = new AdvinstSourceIndex();
 
-    if (!"DOCUMENT".equals(children.item(1).getNodeName())) {
-      return false;
+    XMLStreamReader reader = createXmlReader(aipStream);
+    try {
+      int depth = 0;
+      AdvinstSourceIndex.Kind kind = AdvinstSourceIndex.Kind.FILE;
+      while (reader.hasNext()) {
+        final int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+          if (depth == 2 && kComponentElement.equals(reader.getLocalName())) {
+            kind = getSourceKind(reader.getAttributeValue(null, "cid"));
+          } else if (kRowElement.equals(reader.getLocalName())) {
+            String sourcePath = reader.getAttributeValue(null, "SourcePath");
+            if (null == sourcePath && kind == AdvinstSourceIndex.Kind.MERGE_MODULE) {
+              sourcePath = reader.getAttributeValue(null, "Path");
+            }
+            if (null != sourcePath && !sourcePath.isEmpty()) {
+              index.add(kind, sourcePath);
+            }
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          if (depth == 2) {
+            kind = AdvinstSourceIndex.Kind.FILE;
+          }
+          depth--;
+        }
+      }
+    } finally {
+      reader.close();
     }
 
-    Attr nameAttr = (Attr) children.item(1).getAttributes().getNamedItem("Type");
-    return null != nameAttr;
+    return index;
+  }
 
+  private static AdvinstSourceIndex.Kind getSourceKind(final String componentId) {
+    if (null == componentId) {
+      return AdvinstSourceIndex.Kind.FILE;
+    }
+    if (componentId.contains(kMergeModuleComponentPart)) {
+      return AdvinstSourceIndex.Kind.MERGE_MODULE;
+    }
+    if (componentId.contains(kFolderComponentPart) || componentId.contains(kDirComponentPart)) {
+      return AdvinstSourceIndex.Kind.FOLDER;
+    }
+    return AdvinstSourceIndex.Kind.FILE;
   }
 
-  private void loadXmlFile() throws AdvinstException {
-    try {
-      if (null != mXmlDocument) {
-        return;
-      }
+  private static XMLStreamReader createXmlReader(final InputStream aipStream) throws IOException, XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    return factory.createXMLStreamReader(upgradeXmlVersion(aipStream), "UTF-8");
+  }
 
-      DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-      String aipContent = mAipFile.readToString();
-      // Update the XML version from 1.0 to 1.1. The AIP might contain special
-      // characters like &#1;
-      // which are invalid for XML 1.0.
-      aipContent = aipContent.replace("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>",
-          "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"yes\"?>");
-      mXmlDocument = documentBuilder.parse(new InputSource(new StringReader(aipContent)));
-    } catch (SAXException ex) {
-      throw new AdvinstException("Failed to load AIP file. Exception: " + ex.getMessage(), ex);
-    } catch (ParserConfigurationException ex) {
-      throw new AdvinstException("Failed to load AIP file. Exception: " + ex.getMessage(), ex);
-    } catch (IOException ex) {
-      throw new AdvinstException("Failed to load AIP file. Exception: " + ex.getMessage(), ex);
-    } catch (InterruptedException ex) {
-      throw new AdvinstException("Failed to load AIP file. Exception: " + ex.getMessage(), ex);
+  /**
+   * Replace the XML 1.0 declaration from the start of the stream with an XML
+   * 1.1 one. Only the declaration bytes are buffered, the rest of the content
+   * is passed through.
+   */
+  private static InputStream upgradeXmlVersion(final InputStream aipStream) throws IOException {
+    BufferedInputStream bufferedStream = new BufferedInputStream(aipStream);
+
+    bufferedStream.mark(kUtf8Bom.length);
+    byte[] bom = bufferedStream.readNBytes(kUtf8Bom.length);
+    if (!Arrays.equals(bom, kUtf8Bom)) {
+      bufferedStream.reset();
     }
+
+    bufferedStream.mark(kXml10Declaration.length);
+    byte[] declaration = bufferedStream.readNBytes(kXml10Declaration.length);
+    if (!Arrays.equals(declaration, kXml10Declaration)) {
+      bufferedStream.reset();
+      return bufferedStream;
+    }
+
+    return new SequenceInputStream(new ByteArrayInputStream(kXml11Declaration), bufferedStream);
   }
 }
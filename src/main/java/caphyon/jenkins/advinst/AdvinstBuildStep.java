@@ -0,0 +1,185 @@
+package caphyon.jenkins.advinst;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+
+/**
+ * Pipeline step building an Advanced Installer project:
+ *
+ * <pre>
+ * def result = advinstBuild aipProjectPath: 'setup.aip', aipProjectBuild: 'DefaultBuild'
+ * echo "Exit code ${result.exitCode}, package files ${result.outputFiles}"
+ * </pre>
+ *
+ * Advanced Installer runs as a durable task, so the step does not use any
+ * controller thread while the package is built and survives controller
+ * restarts.
+ *
+ * @see AdvinstBuildStepExecution
+ */
+public final class AdvinstBuildStep extends Step {
+
+  private final String mAipProjectPath;
+  private String mInstallName;
+  private String mAipProjectBuild = "";
+  private String mAipProjectOutputFolder = "";
+  private String mAipProjectOutputName = "";
+  private String mAdvinstExtraCommands = "";
+  private String mAdvinstExtraCommandsFile = "";
+  private boolean mAipProjectNoDigitalSignature = false;
+  private boolean mFailOnError = true;
+
+  @DataBoundConstructor
+  public AdvinstBuildStep(final String aipProjectPath) {
+    this.mAipProjectPath = aipProjectPath;
+  }
+
+  public String getAipProjectPath() {
+    return mAipProjectPath;
+  }
+
+  public String getInstallName() {
+    return mInstallName;
+  }
+
+  /**
+   * @param installName name of the Advanced Installer installation. The first
+   *                    configured installation is used if not set.
+   */
+  @DataBoundSetter
+  public void setInstallName(final String installName) {
+    this.mInstallName = installName;
+  }
+
+  public String getAipProjectBuild() {
+    return mAipProjectBuild;
+  }
+
+  @DataBoundSetter
+  public void setAipProjectBuild(final String aipProjectBuild) {
+    this.mAipProjectBuild = null == aipProjectBuild ? "" : aipProjectBuild;
+  }
+
+  public String getAipProjectOutputFolder() {
+    return mAipProjectOutputFolder;
+  }
+
+  @DataBoundSetter
+  public void setAipProjectOutputFolder(final String aipProjectOutputFolder) {
+    this.mAipProjectOutputFolder = null == aipProjectOutputFolder ? "" : aipProjectOutputFolder;
+  }
+
+  public String getAipProjectOutputName() {
+    return mAipProjectOutputName;
+  }
+
+  @DataBoundSetter
+  public void setAipProjectOutputName(final String aipProjectOutputName) {
+    this.mAipProjectOutputName = null == aipProjectOutputName ? "" : aipProjectOutputName;
+  }
+
+  public String getAdvinstExtraCommands() {
+    return mAdvinstExtraCommands;
+  }
+
+  @DataBoundSetter
+  public void setAdvinstExtraCommands(final String advinstExtraCommands) {
+    this.mAdvinstExtraCommands = null == advinstExtraCommands ? "" : advinstExtraCommands;
+  }
+
+  public String getAdvinstExtraCommandsFile() {
+    return mAdvinstExtraCommandsFile;
+  }
+
+  @DataBoundSetter
+  public void setAdvinstExtraCommandsFile(final String advinstExtraCommandsFile) {
+    this.mAdvinstExtraCommandsFile = null == advinstExtraCommandsFile ? "" : advinstExtraCommandsFile;
+  }
+
+  public boolean getAipProjectNoDigitalSignature() {
+    return mAipProjectNoDigitalSignature;
+  }
+
+  @DataBoundSetter
+  public void setAipProjectNoDigitalSignature(final boolean aipProjectNoDigitalSignature) {
+    this.mAipProjectNoDigitalSignature = aipProjectNoDigitalSignature;
+  }
+
+  public boolean getFailOnError() {
+    return mFailOnError;
+  }
+
+  /**
+   * @param failOnError when false, a failed build does not fail the step and
+   *                    its exit code is returned in the result
+   */
+  @DataBoundSetter
+  public void setFailOnError(final boolean failOnError) {
+    this.mFailOnError = failOnError;
+  }
+
+  /**
+   * @return a build step with the same configuration, used to resolve the tool
+   *         and compute the commands
+   */
+  AdvinstBuilder toBuilder() {
+    String installName = mInstallName;
+    if (null == installName) {
+      AdvinstInstallation[] installations = ExtensionList.lookupSingleton(AdvinstDescriptorImpl.class)
+          .getInstallations();
+      installName = installations.length > 0 ? installations[0].getName() : null;
+    }
+    AdvinstBuilder builder = new AdvinstBuilder(installName, AdvinstConsts.AdvinstRunTypeBuild, mAipProjectPath,
+        mAipProjectBuild, mAipProjectOutputFolder, mAipProjectOutputName, mAdvinstExtraCommands,
+        mAipProjectNoDigitalSignature);
+    builder.setAdvinstExtraCommandsFile(mAdvinstExtraCommandsFile);
+    return builder;
+  }
+
+  @Override
+  public StepExecution start(final StepContext context) throws Exception {
+    return new AdvinstBuildStepExecution(this, context);
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends StepDescriptor {
+
+    @Override
+    public String getFunctionName() {
+      return "advinstBuild";
+    }
+
+    @Override
+    public String getDisplayName() {
+      return Messages.ADVINST_BUILD_STEP();
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      Set<Class<?>> context = new HashSet<Class<?>>();
+      Collections.addAll(context, Run.class, FilePath.class, Launcher.class, TaskListener.class, EnvVars.class);
+      return Collections.unmodifiableSet(context);
+    }
+
+    public ListBoxModel doFillInstallNameItems() {
+      return ExtensionList.lookupSingleton(AdvinstDescriptorImpl.class).doFillInstallNameItems();
+    }
+  }
+}
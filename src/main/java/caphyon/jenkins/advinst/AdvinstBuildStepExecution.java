@@ -0,0 +1,357 @@
+package caphyon.jenkins.advinst;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.durabletask.BatchScript;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Execution of {@link AdvinstBuildStep}. The tool resolution and the AIC file
+ * creation run on a thread of a dedicated pool, since the tool may have to be
+ * downloaded and installed first, then Advanced Installer is launched as a
+ * durable task. The task is polled periodically from the shared timer, so no
+ * thread waits for it, and polling starts again after a controller restart.
+ * Like the freestyle builder, the step takes the permits of the node from
+ * {@link AdvinstNodeLimiter} before launching Advanced Installer, and returns
+ * them when the durable task ends or the step is stopped. The permits are kept
+ * in memory only, so a build resumed after a controller restart runs without
+ * them.
+ *
+ * The step returns a map with the keys <code>exitCode</code>,
+ * <code>success</code>, <code>outputFolder</code>, <code>outputFiles</code>,
+ * <code>files</code>, <code>prepareMillis</code>, <code>buildMillis</code> and
+ * <code>durationMillis</code>. Maps can be used from sandboxed scripts. The
+ * output files are also added to the manifest of the run.
+ */
+final class AdvinstBuildStepExecution extends StepExecution {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(AdvinstBuildStepExecution.class.getName());
+
+  private static final ExecutorService kExecutor = Executors.newCachedThreadPool(
+      new NamingThreadFactory(new DaemonThreadFactory(), AdvinstBuildStepExecution.class.getSimpleName()));
+
+  private static final long kPollMillis = SystemProperties
+      .getLong(AdvinstBuildStepExecution.class.getName() + ".pollMillis", TimeUnit.SECONDS.toMillis(5));
+
+  private final transient AdvinstBuildStep mStep;
+  private final boolean mFailOnError;
+  private final String mProject;
+
+  private Controller mController;
+  private String mAicPath;
+  private String mOutputFolder;
+  private long mStartMillis;
+  private long mPrepareMillis;
+  private long mBuildStartMillis;
+  private boolean mDone;
+  private boolean mStopped;
+
+  private transient volatile Future<?> mPrepare;
+  private transient volatile ScheduledFuture<?> mPoll;
+  private transient boolean mLaunching;
+  private transient AdvinstNodeLimiter.Permit mPermit;
+
+  AdvinstBuildStepExecution(final AdvinstBuildStep step, final StepContext context) {
+    super(context);
+    this.mStep = step;
+    this.mFailOnError = step.getFailOnError();
+    this.mProject = step.getAipProjectBuild().isEmpty() ? step.getAipProjectPath()
+        : step.getAipProjectPath() + " (" + step.getAipProjectBuild() + ")";
+  }
+
+  @Override
+  public boolean start() throws Exception {
+    mStartMillis = System.currentTimeMillis();
+    mPrepare = kExecutor.submit(() -> {
+      try {
+        if (launch()) {
+          schedulePoll();
+        }
+      } catch (Exception e) {
+        fail(e);
+      }
+    });
+    return false;
+  }
+
+  @Override
+  public void onResume() {
+    if (null == mController) {
+      fail(new AbortException(Messages.ERR_ADVINST_STEP_NOT_STARTED()));
+      return;
+    }
+    schedulePoll();
+  }
+
+  @Override
+  public void stop(final Throwable cause) throws Exception {
+    final Controller controller;
+    final boolean preparing;
+    synchronized (this) {
+      mStopped = true;
+      controller = mController;
+      preparing = null == controller && !mLaunching;
+    }
+
+    final Future<?> prepare = mPrepare;
+    if (preparing && null != prepare) {
+      // Still resolving the tool or writing the AIC file, nothing runs yet.
+      prepare.cancel(true);
+    }
+    final ScheduledFuture<?> poll = mPoll;
+    if (null != poll) {
+      poll.cancel(false);
+    }
+    final FilePath workspace = getContext().get(FilePath.class);
+    final Launcher launcher = getContext().get(Launcher.class);
+    if (null != controller && null != workspace && null != launcher) {
+      controller.stop(workspace, launcher);
+    }
+    releasePermit();
+    fail(cause);
+  }
+
+  @Override
+  public String getStatus() {
+    if (null == mController) {
+      return "preparing the Advanced Installer build";
+    }
+    return "waiting for Advanced Installer, started " + (System.currentTimeMillis() - mBuildStartMillis)
+        + " ms ago";
+  }
+
+  /**
+   * Prepare the build and launch Advanced Installer.
+   *
+   * @return false if the step was stopped meanwhile, so the build was not
+   *         launched or was stopped at once
+   */
+  private boolean launch() throws Exception {
+    final FilePath workspace = getContext().get(FilePath.class);
+    final Launcher launcher = getContext().get(Launcher.class);
+    final TaskListener listener = getContext().get(TaskListener.class);
+    final EnvVars env = getContext().get(EnvVars.class);
+    if (launcher.isUnix()) {
+      throw new AbortException(Messages.ERR_ADVINST_UNSUPPORTED_OS());
+    }
+
+    final Computer computer = workspace.toComputer();
+    final Node node = null == computer ? null : computer.getNode();
+    final AdvinstBuilder builder = mStep.toBuilder();
+    try {
+      final String advinstComPath = builder.getAdvinstComPath(node, launcher, listener, env);
+      final FilePath aipPath = builder.getAdvinstAipPath(workspace, launcher, env);
+      final AdvinstParametersProcessor paramsProcessor = new AdvinstParametersProcessor(
+          builder.getAdvinstParameters(), aipPath, workspace, env);
+      final List<String> commands = paramsProcessor.getCommands();
+      final FilePath extraCommandsFile = paramsProcessor.getExtraCommandsFile();
+      final FilePath outputFolder = paramsProcessor.getOutputFolder();
+
+      final FilePath aicFile = AdvinstTool.createAicFile(workspace,
+          commands, null == extraCommandsFile ? null : new AdvinstCommandsFile(extraCommandsFile, env));
+      mAicPath = aicFile.getRemote();
+      mOutputFolder = null == outputFolder ? null : outputFolder.getRemote();
+
+      final String script = quote(advinstComPath) + " /execute " + quote(aipPath.getRemote()) + " "
+          + quote(aicFile.getRemote());
+      final AdvinstNodeLimiter.Permit permit = AdvinstNodeLimiter.acquire(node, builder.getAdvinstBuildWeight(),
+          listener);
+      synchronized (this) {
+        mLaunching = !mStopped;
+        mPermit = permit;
+      }
+      if (!mLaunching) {
+        releasePermit();
+        deleteAicFile();
+        return false;
+      }
+      mBuildStartMillis = System.currentTimeMillis();
+      mPrepareMillis = mBuildStartMillis - mStartMillis;
+      final Controller controller = new BatchScript(script).launch(env, workspace, launcher, listener);
+
+      final boolean stopped;
+      synchronized (this) {
+        mController = controller;
+        mLaunching = false;
+        stopped = mStopped;
+      }
+      if (stopped) {
+        // Stopped while launching, after stop() looked for the controller.
+        controller.stop(workspace, launcher);
+        controller.cleanup(workspace);
+        releasePermit();
+        deleteAicFile();
+        return false;
+      }
+      return true;
+    } catch (AdvinstException e) {
+      throw new AbortException(e.getMessage());
+    }
+  }
+
+  private void schedulePoll() {
+    mPoll = Timer.get().schedule(this::poll, kPollMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void poll() {
+    try {
+      final FilePath workspace = getContext().get(FilePath.class);
+      final Launcher launcher = getContext().get(Launcher.class);
+      final TaskListener listener = getContext().get(TaskListener.class);
+      if (null == workspace || null == launcher || null == workspace.getChannel()) {
+        // The agent is not connected yet, try again later.
+        schedulePoll();
+        return;
+      }
+
+      mController.writeLog(workspace, listener.getLogger());
+      final Integer exitCode = mController.exitStatus(workspace, launcher, listener);
+      if (null == exitCode) {
+        schedulePoll();
+        return;
+      }
+      final long buildMillis = System.currentTimeMillis() - mBuildStartMillis;
+      mController.writeLog(workspace, listener.getLogger());
+      mController.cleanup(workspace);
+      releasePermit();
+      deleteAicFile();
+      // Hashing the output may take long, keep it off the timer.
+      kExecutor.submit(() -> {
+        try {
+          finish(exitCode, buildMillis, workspace);
+        } catch (Exception e) {
+          fail(e);
+        }
+      });
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  private void finish(final int exitCode, final long buildMillis, final FilePath workspace)
+      throws IOException, InterruptedException {
+    List<String> outputFiles = new ArrayList<String>();
+    List<Map<String, Object>> files = new ArrayList<Map<String, Object>>();
+    if (null != mOutputFolder && 0 == exitCode) {
+      final FilePath outputFolder = workspace.child(mOutputFolder);
+      final List<AdvinstManifest.Entry> entries = outputFolder.act(new AdvinstManifest.Scan());
+      for (AdvinstManifest.Entry entry : entries) {
+        outputFiles.add(outputFolder.child(entry.getPath()).getRemote());
+        files.add(toMap(entry));
+      }
+      AdvinstManifestAction.add(getContext().get(Run.class), mProject, mOutputFolder, entries, false);
+    }
+
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("exitCode", exitCode);
+    result.put("success", 0 == exitCode);
+    result.put("outputFolder", mOutputFolder);
+    result.put("outputFiles", outputFiles);
+    result.put("files", files);
+    result.put("prepareMillis", mPrepareMillis);
+    result.put("buildMillis", buildMillis);
+    result.put("durationMillis", System.currentTimeMillis() - mStartMillis);
+
+    if (0 != exitCode && mFailOnError) {
+      fail(new AbortException(Messages.ERR_ADVINST_BUILD_FAILED(exitCode)));
+      return;
+    }
+    synchronized (this) {
+      if (mDone) {
+        return;
+      }
+      mDone = true;
+    }
+    getContext().onSuccess(result);
+  }
+
+  /**
+   * @return a manifest entry as a map, so it can be used from sandboxed scripts
+   */
+  static Map<String, Object> toMap(final AdvinstManifest.Entry entry) {
+    Map<String, Object> file = new LinkedHashMap<String, Object>();
+    file.put("path", entry.getPath());
+    file.put("size", entry.getSize());
+    file.put("sha256", entry.getSha256());
+    return file;
+  }
+
+  private void fail(final Throwable cause) {
+    // Also when already done: a stopped launch may fail after stop() failed
+    // the step, with its AIC file already written.
+    releasePermit();
+    deleteAicFile();
+    synchronized (this) {
+      if (mDone) {
+        return;
+      }
+      mDone = true;
+    }
+    getContext().onFailure(cause);
+  }
+
+  /** Return the permits of the node, if taken. */
+  private void releasePermit() {
+    final AdvinstNodeLimiter.Permit permit;
+    synchronized (this) {
+      permit = mPermit;
+      mPermit = null;
+    }
+    if (null != permit) {
+      permit.close();
+    }
+  }
+
+  /** Delete the AIC file of the build, if any. Failures are only logged. */
+  private void deleteAicFile() {
+    final String aicPath;
+    synchronized (this) {
+      aicPath = mAicPath;
+      mAicPath = null;
+    }
+    if (null == aicPath) {
+      return;
+    }
+    try {
+      final FilePath workspace = getContext().get(FilePath.class);
+      if (null != workspace && null != workspace.getChannel()) {
+        workspace.child(aicPath).delete();
+      }
+    } catch (Exception e) {
+      LOGGER.log(Level.FINE, "Failed to delete " + aicPath, e);
+    }
+  }
+
+  /** Quote a path for a batch file. */
+  private static String quote(final String path) {
+    return "\"" + path.replace("%", "%%") + "\"";
+  }
+}
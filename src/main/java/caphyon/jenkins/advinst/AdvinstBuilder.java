@@ -1,7 +1,9 @@
 package caphyon.jenkins.advinst;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -14,7 +16,6 @@ import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
-import hudson.model.Executor;
 import hudson.model.Node;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
@@ -24,7 +25,10 @@ import hudson.tasks.Builder;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
 import jenkins.tasks.SimpleBuildStep;
+import jenkins.util.BuildListenerAdapter;
 
 /**
  * Sample {@link Builder}.
@@ -72,6 +76,20 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
   @Override
   public void perform(Run<?, ?> run, FilePath wotkspace, EnvVars envVars, Launcher launcher, TaskListener listener)
       throws InterruptedException, IOException {
+    final Node node = getNodeFromWorkspace(wotkspace);
+    final AdvinstTimings timings = AdvinstTimings.begin(null == node ? null : node.getNodeName());
+    try {
+      performStep(run, wotkspace, envVars, launcher, listener, node, timings);
+    } finally {
+      AdvinstTimings.end();
+      final String project = getAdvinstRunType().equals(AdvinstConsts.AdvinstRunTypeDeploy) ? null
+          : getAipProjectPath();
+      AdvinstTimingsAction.add(run, project, timings);
+    }
+  }
+
+  private void performStep(Run<?, ?> run, FilePath wotkspace, EnvVars envVars, Launcher launcher,
+      TaskListener listener, final Node node, final AdvinstTimings timings) throws InterruptedException, IOException {
     boolean success;
     try {
       EnvVars env = envVars;
@@ -87,8 +105,9 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
           }
       }
 
-      final Node node = getNodeFromRun(run);
+      final long toolResolutionStart = System.nanoTime();
       final String advinstComPath = getAdvinstComPath(node, launcher, listener, env);
+      AdvinstTimings.record(AdvinstTimings.kToolResolution, toolResolutionStart);
 
       if (getAdvinstRunType().equals(AdvinstConsts.AdvinstRunTypeDeploy)) {
         return;
@@ -96,12 +115,88 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
 
       final FilePath advinstAipPath = getAdvinstAipPath(wotkspace, launcher, env);
 
+      if (getAipProjectPreflight() && !checkSourcePaths(advinstAipPath, listener)) {
+        run.setResult(Result.FAILURE);
+        return;
+      }
+
       AdvinstParametersProcessor paramsProcessor = new AdvinstParametersProcessor(mAdvinstParameters, advinstAipPath,
           wotkspace, env);
-      final List<String> commands = paramsProcessor.getCommands();
+      AdvinstTool advinstTool = new AdvinstTool(advinstComPath, AdvinstWorkerConfig.forNode(node));
+
+      FilePath stagingFolder = null;
+      if (getAipProjectStageOutput() && null != paramsProcessor.getOutputFolder()) {
+        stagingFolder = AdvinstStaging.create(node, wotkspace, paramsProcessor.getOutputFolder());
+        if (null != stagingFolder) {
+          paramsProcessor.setStagingFolder(stagingFolder);
+          listener.getLogger().println(Messages.MSG_ADVINST_STAGING(stagingFolder.getRemote()));
+        }
+      }
+
+      try {
+        final FilePath extraCommandsFile = paramsProcessor.getExtraCommandsFile();
+        final AdvinstCommandsFile commandsFile = null == extraCommandsFile ? null
+            : new AdvinstCommandsFile(extraCommandsFile, env);
+
+        if (getAipProjectParallelBuilds()) {
+          final List<String> buildNames = paramsProcessor.getParallelBuilds();
+          final List<String> editCommands = paramsProcessor.getParallelEditCommands(buildNames);
+          try (AdvinstNodeLimiter.Permit permit = AdvinstNodeLimiter.acquire(node, getAdvinstBuildWeight(), listener)) {
+            success = advinstTool.executeParallelBuilds(editCommands, buildNames, commandsFile,
+                getAipProjectMaxParallelBuilds(), advinstAipPath, wotkspace, launcher, listener, env);
+          }
+          publishStaging(stagingFolder, paramsProcessor.getOutputFolder(), success, listener);
+          if (success) {
+            final int commandCount = editCommands.size() + buildNames.size();
+            recordManifest(run, launcher, listener, paramsProcessor.getOutputFolder());
+            recordTrend(run, node, launcher, listener, timings, advinstComPath, paramsProcessor.getOutputFolder(),
+                commandCount);
+          }
+        } else {
+          final List<String> commands = paramsProcessor.getCommands();
+
+          AdvinstIncrementalBuild incrementalBuild = null;
+          if (getAipProjectIncremental()) {
+            incrementalBuild = AdvinstIncrementalBuild.create(run, node, advinstAipPath, commands, commandsFile,
+                advinstComPath, paramsProcessor.getOutputFolder(), listener);
+            if (null != incrementalBuild && incrementalBuild.restore(listener)) {
+              run.setResult(Result.SUCCESS);
+              return;
+            }
+          }
 
-      AdvinstTool advinstTool = new AdvinstTool(advinstComPath);
-      success = advinstTool.executeCommands(commands, advinstAipPath, wotkspace, launcher, listener, env);
+          FilePath fullLog = null;
+          if (getAdvinstCondensedLog()) {
+            FilePath tempDir = WorkspaceList.tempDir(wotkspace);
+            if (null != tempDir) {
+              tempDir.mkdirs();
+              fullLog = tempDir.createTempFile("advinst-" + run.getNumber() + "-", ".log.gz");
+              listener.getLogger().println(Messages.MSG_ADVINST_LOG_CONDENSED(getFullLogArtifact(fullLog)));
+            }
+          }
+
+          try (AdvinstNodeLimiter.Permit permit = AdvinstNodeLimiter.acquire(node, getAdvinstBuildWeight(), listener)) {
+            success = advinstTool.executeCommands(commands, commandsFile, advinstAipPath, wotkspace, launcher,
+                listener, env, fullLog);
+          } finally {
+            if (null != fullLog) {
+              archiveFullLog(run, launcher, listener, fullLog);
+              fullLog.delete();
+            }
+          }
+          publishStaging(stagingFolder, paramsProcessor.getOutputFolder(), success, listener);
+          if (success && null != incrementalBuild) {
+            incrementalBuild.record(listener);
+          }
+          if (success) {
+            recordManifest(run, launcher, listener, paramsProcessor.getOutputFolder());
+            recordTrend(run, node, launcher, listener, timings, advinstComPath, paramsProcessor.getOutputFolder(),
+                commands.size());
+          }
+        }
+      } finally {
+        discardStaging(stagingFolder, listener);
+      }
       run.setResult(success ? Result.SUCCESS : Result.FAILURE);
     } catch (AdvinstException e) {
       listener.fatalError(e.getMessage());
@@ -123,6 +218,10 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
     this.mInstallName = installName;
   }
 
+  AdvinstParameters getAdvinstParameters() {
+    return this.mAdvinstParameters;
+  }
+
   public String getAdvinstRunType() {
     return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamAdvinstRunType, "build");
   }
@@ -162,6 +261,20 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
     return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamExtraCommands, "");
   }
 
+  /**
+   * @return String containing the path of a file with additional edit
+   *         commands, relative to the workspace
+   */
+  public String getAdvinstExtraCommandsFile() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamExtraCommandsFile, "");
+  }
+
+  @DataBoundSetter
+  public void setAdvinstExtraCommandsFile(final String advinstExtraCommandsFile) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamExtraCommandsFile,
+        advinstExtraCommandsFile == null ? "" : advinstExtraCommandsFile);
+  }
+
   /**
    * @return Boolean that tells whether the digital signature step should be
    *         performed
@@ -170,7 +283,288 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
     return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamAipNoDigSig, false);
   }
 
-  private String getAdvinstComPath(final Node node, final Launcher launcher, final TaskListener listener, final EnvVars env)
+  /**
+   * @return Boolean that tells whether the builds should run as parallel
+   *         processes
+   */
+  public boolean getAipProjectParallelBuilds() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamAipParallelBuilds, false);
+  }
+
+  @DataBoundSetter
+  public void setAipProjectParallelBuilds(final boolean aipProjectParallelBuilds) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamAipParallelBuilds, aipProjectParallelBuilds);
+  }
+
+  /**
+   * @return maximum number of builds running at the same time
+   */
+  public int getAipProjectMaxParallelBuilds() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamAipMaxParallelBuilds,
+        AdvinstConsts.DefaultMaxParallelBuilds);
+  }
+
+  @DataBoundSetter
+  public void setAipProjectMaxParallelBuilds(final int aipProjectMaxParallelBuilds) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamAipMaxParallelBuilds, aipProjectMaxParallelBuilds);
+  }
+
+  /**
+   * @return Boolean that tells whether only a condensed Advanced Installer
+   *         output should be sent to the build log
+   */
+  public boolean getAdvinstCondensedLog() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamCondensedLog, false);
+  }
+
+  @DataBoundSetter
+  public void setAdvinstCondensedLog(final boolean advinstCondensedLog) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamCondensedLog, advinstCondensedLog);
+  }
+
+  /**
+   * @return duration increase, in percents over the recent builds, above which
+   *         the build step is flagged as slow. 0 disables the check.
+   */
+  public int getAdvinstDurationThreshold() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamDurationThreshold,
+        AdvinstConsts.DefaultDurationThreshold);
+  }
+
+  @DataBoundSetter
+  public void setAdvinstDurationThreshold(final int advinstDurationThreshold) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamDurationThreshold, advinstDurationThreshold);
+  }
+
+  /**
+   * @return Boolean that tells whether the build should be skipped when its
+   *         inputs did not change since the last successful build
+   */
+  public boolean getAipProjectIncremental() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamAipIncremental, false);
+  }
+
+  @DataBoundSetter
+  public void setAipProjectIncremental(final boolean aipProjectIncremental) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamAipIncremental, aipProjectIncremental);
+  }
+
+  /**
+   * @return Boolean that tells whether the files of the output folder should be
+   *         archived as build artifacts
+   */
+  public boolean getAipProjectArchiveOutput() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamAipArchiveOutput, false);
+  }
+
+  @DataBoundSetter
+  public void setAipProjectArchiveOutput(final boolean aipProjectArchiveOutput) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamAipArchiveOutput, aipProjectArchiveOutput);
+  }
+
+  /**
+   * @return Boolean that tells whether the source paths referenced by the
+   *         project should be checked before the build
+   */
+  public boolean getAipProjectPreflight() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamAipPreflight, false);
+  }
+
+  @DataBoundSetter
+  public void setAipProjectPreflight(final boolean aipProjectPreflight) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamAipPreflight, aipProjectPreflight);
+  }
+
+  /**
+   * @return Boolean that tells whether the package should be built into a
+   *         local staging folder and then published to the output folder
+   */
+  public boolean getAipProjectStageOutput() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamAipStageOutput, false);
+  }
+
+  @DataBoundSetter
+  public void setAipProjectStageOutput(final boolean aipProjectStageOutput) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamAipStageOutput, aipProjectStageOutput);
+  }
+
+  /**
+   * @return number of build slots of the node taken by this step while
+   *         Advanced Installer runs
+   */
+  public int getAdvinstBuildWeight() {
+    return this.mAdvinstParameters.get(AdvinstConsts.AdvinstParamBuildWeight, AdvinstConsts.DefaultBuildWeight);
+  }
+
+  @DataBoundSetter
+  public void setAdvinstBuildWeight(final int advinstBuildWeight) {
+    this.mAdvinstParameters.set(AdvinstConsts.AdvinstParamBuildWeight, advinstBuildWeight);
+  }
+
+  /**
+   * Delete the staging folder if it was not published, also when the build
+   * failed with an exception. Failures are only logged, so they do not hide
+   * the result of the build.
+   */
+  private static void discardStaging(final FilePath stagingFolder, final TaskListener listener)
+      throws InterruptedException {
+    if (null == stagingFolder) {
+      return;
+    }
+    try {
+      stagingFolder.deleteRecursive();
+    } catch (IOException e) {
+      listener.getLogger().println(Messages.MSG_ADVINST_STAGING_NOT_DELETED(stagingFolder.getRemote(),
+          e.getMessage()));
+    }
+  }
+
+  /**
+   * Publish the staging folder to the output folder if the build succeeded,
+   * otherwise discard it.
+   */
+  private static void publishStaging(final FilePath stagingFolder, final FilePath outputFolder,
+      final boolean success, final TaskListener listener) throws IOException, InterruptedException {
+    if (null == stagingFolder) {
+      return;
+    }
+    if (!success) {
+      stagingFolder.deleteRecursive();
+      return;
+    }
+
+    final long publishStart = System.nanoTime();
+    final int fileCount = stagingFolder.act(new AdvinstStaging.Publish(outputFolder));
+    AdvinstTimings.record(AdvinstTimings.kPublish, publishStart);
+    listener.getLogger().println(Messages.MSG_ADVINST_STAGING_PUBLISHED(fileCount, outputFolder.getRemote(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - publishStart)));
+  }
+
+  /**
+   * Check that the source paths referenced by the project exist on the node,
+   * and list the missing ones.
+   *
+   * @return true if no source path is missing
+   */
+  private boolean checkSourcePaths(final FilePath aipPath, final TaskListener listener)
+      throws IOException, InterruptedException {
+    final long preflightStart = System.nanoTime();
+    final List<String> missingPaths = aipPath.act(new AdvinstSourceIndex.Check());
+    AdvinstTimings.record(AdvinstTimings.kPreflight, preflightStart);
+    if (missingPaths.isEmpty()) {
+      return true;
+    }
+
+    for (String missingPath : missingPaths) {
+      listener.getLogger().println(Messages.ERR_ADVINST_SOURCE_MISSING(missingPath));
+    }
+    listener.fatalError(Messages.ERR_ADVINST_PREFLIGHT_FAILED(missingPaths.size(), aipPath.getRemote()));
+    return false;
+  }
+
+  /**
+   * Hash the files of the output folder and add them to the manifest of the
+   * run, then archive them if requested.
+   */
+  private void recordManifest(final Run<?, ?> run, final Launcher launcher, final TaskListener listener,
+      final FilePath outputFolder) throws IOException, InterruptedException {
+    if (null == outputFolder) {
+      return;
+    }
+
+    final long manifestStart = System.nanoTime();
+    final List<AdvinstManifest.Entry> files = outputFolder.act(new AdvinstManifest.Scan());
+    AdvinstTimings.record(AdvinstTimings.kManifest, manifestStart);
+    long totalSize = 0;
+    for (AdvinstManifest.Entry file : files) {
+      totalSize += file.getSize();
+    }
+    listener.getLogger().println(Messages.MSG_ADVINST_MANIFEST_RECORDED(files.size(), totalSize,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - manifestStart)));
+
+    final boolean archive = getAipProjectArchiveOutput() && !files.isEmpty();
+    if (archive) {
+      final long archiveStart = System.nanoTime();
+      AdvinstManifest.archive(run, outputFolder, launcher, listener, files);
+      AdvinstTimings.record(AdvinstTimings.kArchive, archiveStart);
+      listener.getLogger().println(Messages.MSG_ADVINST_MANIFEST_ARCHIVED(files.size(),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - archiveStart)));
+    }
+    AdvinstManifestAction.add(run, getAipProjectPath(), outputFolder.getRemote(), files, archive);
+  }
+
+  /**
+   * Archive the full output saved by a condensed log, so it can be reached from
+   * the build. A failure is only reported in the build log.
+   */
+  private static void archiveFullLog(final Run<?, ?> run, final Launcher launcher, final TaskListener listener,
+      final FilePath fullLog) throws InterruptedException {
+    try {
+      if (fullLog.exists() && fullLog.length() > 0) {
+        run.pickArtifactManager().archive(fullLog.getParent(), launcher, BuildListenerAdapter.wrap(listener),
+            Collections.singletonMap(getFullLogArtifact(fullLog), fullLog.getName()));
+      }
+    } catch (IOException e) {
+      listener.error(Messages.ERR_ADVINST_LOG_ARCHIVE_FAILED(e.getMessage()));
+    }
+  }
+
+  private static String getFullLogArtifact(final FilePath fullLog) {
+    return "advinst-logs/" + fullLog.getName();
+  }
+
+  /**
+   * Append the step to the trend of the job, and warn if its duration is above
+   * the threshold.
+   */
+  private void recordTrend(final Run<?, ?> run, final Node node, final Launcher launcher, final TaskListener listener,
+      final AdvinstTimings timings, final String advinstComPath, final FilePath outputFolder, final int commandCount)
+      throws IOException, InterruptedException {
+    final long packageSize = null == outputFolder ? -1 : outputFolder.act(new AdvinstTrend.FolderSize());
+
+    String toolVersion = AdvinstToolCache.getVersion(node, advinstComPath);
+    if (null == toolVersion) {
+      toolVersion = readToolVersion(launcher.getChannel(), null, advinstComPath);
+      AdvinstToolCache.putVersion(node, advinstComPath, toolVersion);
+    }
+
+    final int threshold = getAdvinstDurationThreshold();
+    final AdvinstTrend.Entry entry = AdvinstTrend.append(run.getParent(), run.getNumber(), run.getStartTimeInMillis(),
+        timings.getElapsedMillis(), packageSize, commandCount, toolVersion, threshold);
+    if (entry.isFlagged()) {
+      listener.getLogger().println(Messages.MSG_ADVINST_TREND_SLOW(entry.getDurationMillis(), threshold));
+    }
+  }
+
+  /**
+   * Read the version of the Advanced Installer executable, from the manifest
+   * of a deployment made by the installer or else from the version resource
+   * of the executable.
+   *
+   * @param home folder of the tool, or null if not known
+   * @return the version, or an empty string if it cannot be read
+   */
+  private static String readToolVersion(final VirtualChannel channel, final String home,
+      final String advinstComPath) throws IOException, InterruptedException {
+    if (null == channel) {
+      return "";
+    }
+    if (null != home) {
+      final AdvinstInstallManifest manifest = new FilePath(channel, home).act(new AdvinstInstallManifest.Read());
+      if (null != manifest) {
+        return manifest.getVersion();
+      }
+    }
+    try {
+      return channel.call(new AdvinstInstaller.GetWin32FileVersion(advinstComPath));
+    } catch (RuntimeException | LinkageError e) {
+      // The version is informative only, the file may not have version
+      // resources and JNA may not load on the node.
+      return "";
+    }
+  }
+
+  String getAdvinstComPath(final Node node, final Launcher launcher, final TaskListener listener, final EnvVars env)
       throws AdvinstException {
 
     AdvinstInstallation advinstInstall = getAdvinstInstallation();
@@ -178,14 +572,27 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
       throw new AdvinstException(Messages.ERR_ADVINST_INSTALL_NOT_SET());
     }
 
-    String advinstComPath = null;
+    // Reuse the path resolved by a previous step on the same node, as long as
+    // the tool was not deleted or moved since.
+    final String installName = advinstInstall.getName();
+    final String installHome = env.expand(advinstInstall.getHome());
+    String advinstComPath = AdvinstToolCache.get(node, installName, installHome);
     try {
+      final VirtualChannel channel = launcher.getChannel();
+      if (null != advinstComPath && null != channel && new FilePath(channel, advinstComPath).exists()) {
+        return advinstComPath;
+      }
+      AdvinstToolCache.remove(node, installName, installHome);
+
       advinstInstall = advinstInstall.forNode(node, listener);
       advinstInstall = advinstInstall.forEnvironment(env);
       advinstComPath = advinstInstall.getExecutable(launcher);
       if (null == advinstComPath) {
         throw new AdvinstException(Messages.ERR_ADVINST_COM_NOT_FOUND());
       }
+      AdvinstToolCache.put(node, installName, installHome, advinstComPath);
+      AdvinstToolCache.putVersion(node, advinstComPath,
+          readToolVersion(launcher.getChannel(), advinstInstall.getHome(), advinstComPath));
     } catch (IOException ex) {
       throw new AdvinstException(ex);
     } catch (InterruptedException ex) {
@@ -196,7 +603,7 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
   }
 
   @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
-  private FilePath getAdvinstAipPath(final FilePath workspace, final Launcher launcher, final EnvVars env)
+  FilePath getAdvinstAipPath(final FilePath workspace, final Launcher launcher, final EnvVars env)
       throws AdvinstException {
     final String advinstAipPathParam = getAipProjectPath();
     String expandedValue = Util.replaceMacro(advinstAipPathParam, env);
@@ -224,12 +631,13 @@ public final class AdvinstBuilder extends Builder implements SimpleBuildStep {
     return null;
   }
 
-  private Node getNodeFromRun(Run<?, ?> run) {
-    final Executor executor = run.getExecutor();
-    if (executor == null) {
-      return null;
-    }
-    final Computer computer = executor.getOwner();
-    return computer.getNode();
+  /**
+   * @return the node holding the workspace, which runs the build step. The
+   *         executor of the run cannot be used: under Pipeline it is a flyweight
+   *         executor of the controller, whatever agent runs the step.
+   */
+  private static Node getNodeFromWorkspace(final FilePath workspace) {
+    final Computer computer = workspace.toComputer();
+    return null == computer ? null : computer.getNode();
   }
 }
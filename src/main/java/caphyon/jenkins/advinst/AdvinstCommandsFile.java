@@ -0,0 +1,88 @@
+package caphyon.jenkins.advinst;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+
+/**
+ * A file holding extra edit commands, one per line, UTF-8 encoded. It is read
+ * line by line on the node that holds it, macros being expanded with the build
+ * environment, so its content never reaches the controller.
+ */
+final class AdvinstCommandsFile implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final char kBom = '\uFEFF';
+
+  private final String mPath;
+  private final EnvVars mEnvVars;
+
+  /**
+   * @param path    the commands file, on the node running the build
+   * @param envVars variables used to expand the macros in the commands
+   */
+  AdvinstCommandsFile(final FilePath path, final EnvVars envVars) {
+    this.mPath = path.getRemote();
+    this.mEnvVars = new EnvVars(envVars);
+  }
+
+  String getPath() {
+    return mPath;
+  }
+
+  /**
+   * Copy the expanded commands to a writer, each one followed by CRLF. Empty
+   * lines are skipped. Must be called on the node that holds the file.
+   *
+   * @return the number of commands copied
+   */
+  int copyTo(final Writer writer) throws IOException {
+    final File file = new File(mPath);
+    if (!file.isFile()) {
+      throw new IOException(Messages.ERR_ADVINST_COMMANDS_FILE_NOT_FOUND(mPath));
+    }
+
+    int count = 0;
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line = reader.readLine();
+      if (null != line && !line.isEmpty() && kBom == line.charAt(0)) {
+        line = line.substring(1);
+      }
+      for (; line != null; line = reader.readLine()) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        writer.write(Util.replaceMacro(line, mEnvVars));
+        writer.write("\r\n");
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return SHA-256 of the expanded commands. Must be called on the node that
+   *         holds the file.
+   */
+  String sha256() throws IOException {
+    final MessageDigest digest = AdvinstDigest.newSha256();
+    try (Writer writer = new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), digest),
+        StandardCharsets.UTF_8)) {
+      copyTo(writer);
+    }
+    return Util.toHexString(digest.digest());
+  }
+}
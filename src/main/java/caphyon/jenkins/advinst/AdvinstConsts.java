@@ -25,6 +25,7 @@ final class AdvinstConsts {
   public static final String AdvinstComSubPath = AdvinstToolsSubfolder + File.separator + AdvinstComApp;
   public static final String AdvinstAicHeader = ";aic";
   public static final String AdvinstBuildAll = "All";
+  public static final String AdvinstBuildListSeparator = ";";
 
   // --------------------------------------------------------------------------
   // Advinst commands
@@ -41,8 +42,21 @@ final class AdvinstConsts {
   public static final String AdvinstParamAipOutputName = "aipProjectOutputName";
   public static final String AdvinstParamAipNoDigSig = "aipProjectNoDigitalSignature";
   public static final String AdvinstParamExtraCommands = "advinstExtraCommands";
+  public static final String AdvinstParamExtraCommandsFile = "advinstExtraCommandsFile";
+  public static final String AdvinstParamAipParallelBuilds = "aipProjectParallelBuilds";
+  public static final String AdvinstParamAipMaxParallelBuilds = "aipProjectMaxParallelBuilds";
+  public static final String AdvinstParamAipIncremental = "aipProjectIncremental";
+  public static final String AdvinstParamCondensedLog = "advinstCondensedLog";
+  public static final String AdvinstParamDurationThreshold = "advinstDurationThreshold";
+  public static final String AdvinstParamAipArchiveOutput = "aipProjectArchiveOutput";
+  public static final String AdvinstParamAipPreflight = "aipProjectPreflight";
+  public static final String AdvinstParamAipStageOutput = "aipProjectStageOutput";
+  public static final String AdvinstParamBuildWeight = "advinstBuildWeight";
   public static final String AdvinstRunTypeDeploy = "deploy";
   public static final String AdvinstRunTypeBuild = "build";
 
   public static final int ValidReleaseIntervalMonths = 24;
+  public static final int DefaultMaxParallelBuilds = 2;
+  public static final int DefaultDurationThreshold = 50;
+  public static final int DefaultBuildWeight = 1;
 }
@@ -115,6 +115,7 @@ public final class AdvinstDescriptorImpl extends BuildStepDescriptor<Builder> {
 
   public void setInstallations(final AdvinstInstallation... installations) {
     this.installations = installations;
+    AdvinstToolCache.clear();
     save();
   }
 }
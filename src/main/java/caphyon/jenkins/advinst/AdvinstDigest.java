@@ -0,0 +1,49 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import hudson.Util;
+
+/**
+ * SHA-256 helpers.
+ */
+final class AdvinstDigest {
+
+  private static final int kBufferSize = 64 * 1024;
+
+  private AdvinstDigest() {
+  }
+
+  static String sha256(final byte[] data) {
+    return Util.toHexString(newSha256().digest(data));
+  }
+
+  static String sha256(final InputStream is) throws IOException {
+    final MessageDigest digest = newSha256();
+    final byte[] buf = new byte[kBufferSize];
+    int i = 0;
+    while ((i = is.read(buf)) != -1) {
+      digest.update(buf, 0, i);
+    }
+    return Util.toHexString(digest.digest());
+  }
+
+  static String sha256(final File file) throws IOException {
+    try (InputStream is = Files.newInputStream(file.toPath())) {
+      return sha256(is);
+    }
+  }
+
+  static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
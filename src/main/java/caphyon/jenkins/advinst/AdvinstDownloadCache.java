@@ -0,0 +1,251 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import hudson.ProxyConfiguration;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Controller side cache of the Advanced Installer setup packages. Each version
+ * is downloaded once, through the Jenkins proxy, with HTTP Range resume if the
+ * transfer is interrupted, and stored together with its SHA-256 checksum.
+ * Agents then get the package from this cache over the remoting channel. Only
+ * the most recently used packages are kept.
+ */
+final class AdvinstDownloadCache {
+
+  private static final String kCacheFolder = "caches" + File.separator + "advinst-installer";
+  private static final String kMsiFileName = "advinst.msi";
+  private static final String kPartialSuffix = ".part";
+  private static final String kChecksumSuffix = ".sha256";
+  private static final int kMaxDownloadAttempts = 5;
+  private static final long kRetryDelayMillis = TimeUnit.SECONDS.toMillis(1);
+  private static final int kConnectTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(30);
+  private static final int kReadTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(60);
+  private static final int kBufferSize = 64 * 1024;
+  private static final int kHttpRangeNotSatisfiable = 416;
+
+  /** Number of packages kept in the cache. */
+  private static final int kMaxEntries = Math.max(1,
+      SystemProperties.getInteger(AdvinstDownloadCache.class.getName() + ".maxEntries", 3));
+
+  private static final ConcurrentMap<String, ReentrantLock> kEntryLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+  private AdvinstDownloadCache() {
+  }
+
+  /** A setup package stored in the cache. */
+  static final class Entry {
+    private final File mMsiFile;
+    private final String mSha256;
+
+    Entry(final File msiFile, final String sha256) {
+      this.mMsiFile = msiFile;
+      this.mSha256 = sha256;
+    }
+
+    File getMsiFile() {
+      return mMsiFile;
+    }
+
+    String getSha256() {
+      return mSha256;
+    }
+  }
+
+  /**
+   * Get the setup package for the given version, downloading it if it is not
+   * already cached.
+   *
+   * @param version        Advanced Installer version
+   * @param downloadUrl    URL of the setup package
+   * @param expectedSha256 expected SHA-256 of the package, or null if unknown
+   * @param listener       build listener
+   * @return the cached package
+   */
+  static Entry get(final String version, final String downloadUrl, final String expectedSha256,
+      final TaskListener listener) throws IOException, InterruptedException {
+    return get(new File(Jenkins.get().getRootDir(), kCacheFolder), version, downloadUrl, expectedSha256, listener);
+  }
+
+  /**
+   * @param cacheFolder folder of the cache
+   */
+  static Entry get(final File cacheFolder, final String version, final String downloadUrl,
+      final String expectedSha256, final TaskListener listener) throws IOException, InterruptedException {
+    final File entryFolder = getEntryFolder(cacheFolder, version, downloadUrl);
+    final ReentrantLock lock = kEntryLocks.computeIfAbsent(entryFolder.getPath(), k -> new ReentrantLock());
+    final Entry entry;
+    // The download may take long, let the waiting builds be aborted.
+    lock.lockInterruptibly();
+    try {
+      final File msiFile = new File(entryFolder, kMsiFileName);
+      final File checksumFile = new File(entryFolder, kMsiFileName + kChecksumSuffix);
+      if (msiFile.isFile() && checksumFile.isFile()) {
+        final String cachedSha256 = readChecksum(checksumFile);
+        if (null == expectedSha256 || expectedSha256.equalsIgnoreCase(cachedSha256)) {
+          listener.getLogger().println(Messages.MSG_ADVINST_DOWNLOAD_CACHED(downloadUrl, msiFile));
+          // Most recently used entries are kept by the eviction.
+          entryFolder.setLastModified(System.currentTimeMillis());
+          return new Entry(msiFile, cachedSha256);
+        }
+      }
+
+      Files.createDirectories(entryFolder.toPath());
+      final File partialFile = new File(entryFolder, kMsiFileName + kPartialSuffix);
+      listener.getLogger().println(Messages.MSG_ADVINST_DOWNLOAD_PROGRESS(downloadUrl, msiFile));
+      download(new URL(downloadUrl), partialFile, listener);
+
+      final String sha256 = AdvinstDigest.sha256(partialFile);
+      if (null != expectedSha256 && !expectedSha256.equalsIgnoreCase(sha256)) {
+        Files.deleteIfExists(partialFile.toPath());
+        throw new IOException(Messages.ERR_ADVINST_CHECKSUM_MISMATCH(downloadUrl, expectedSha256, sha256));
+      }
+
+      Files.move(partialFile.toPath(), msiFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      Files.write(checksumFile.toPath(), sha256.getBytes(StandardCharsets.US_ASCII));
+      entryFolder.setLastModified(System.currentTimeMillis());
+      entry = new Entry(msiFile, sha256);
+    } finally {
+      lock.unlock();
+    }
+
+    evict(cacheFolder);
+    return entry;
+  }
+
+  private static File getEntryFolder(final File cacheFolder, final String version, final String downloadUrl) {
+    // Packages downloaded from a custom location are kept apart from the
+    // official ones.
+    String entryName = Util.rawEncode(version);
+    if (!downloadUrl.equals(AdvinstInstaller.getDefaultDownloadUrl(version))) {
+      entryName += "-" + Util.getDigestOf(downloadUrl).substring(0, 8);
+    }
+    return new File(cacheFolder, entryName);
+  }
+
+  /**
+   * Delete the least recently used packages, keeping the configured number of
+   * packages. Packages being downloaded or checked are skipped.
+   */
+  private static void evict(final File cacheFolder) {
+    final File[] entryFolders = cacheFolder.listFiles(File::isDirectory);
+    if (null == entryFolders || entryFolders.length <= kMaxEntries) {
+      return;
+    }
+    Arrays.sort(entryFolders, Comparator.comparingLong(File::lastModified).reversed());
+    for (File entryFolder : Arrays.asList(entryFolders).subList(kMaxEntries, entryFolders.length)) {
+      final ReentrantLock lock = kEntryLocks.computeIfAbsent(entryFolder.getPath(), k -> new ReentrantLock());
+      if (!lock.tryLock()) {
+        continue;
+      }
+      try {
+        Util.deleteRecursive(entryFolder);
+      } catch (IOException e) {
+        // Retried on the next eviction.
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private static String readChecksum(final File checksumFile) throws IOException {
+    return new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.US_ASCII).trim();
+  }
+
+  /**
+   * Download the URL into the given file. If the file already holds the start
+   * of the content, from a previous interrupted attempt, the transfer is
+   * resumed from where it stopped.
+   */
+  private static void download(final URL url, final File targetFile, final TaskListener listener)
+      throws IOException, InterruptedException {
+    IOException lastError = null;
+    for (int attempt = 0; attempt < kMaxDownloadAttempts; attempt++) {
+      if (attempt > 0) {
+        // Exponential backoff: 1, 2, 4 and 8 seconds.
+        Thread.sleep(kRetryDelayMillis << (attempt - 1));
+      }
+      try {
+        final long offset = targetFile.isFile() ? targetFile.length() : 0;
+        final URLConnection conn = ProxyConfiguration.open(url);
+        conn.setConnectTimeout(kConnectTimeoutMillis);
+        conn.setReadTimeout(kReadTimeoutMillis);
+        conn.setUseCaches(false);
+        boolean append = false;
+        if (conn instanceof HttpURLConnection) {
+          final HttpURLConnection httpConn = (HttpURLConnection) conn;
+          if (offset > 0) {
+            httpConn.setRequestProperty("Range", "bytes=" + offset + "-");
+          }
+          final int responseCode = httpConn.getResponseCode();
+          if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+            append = true;
+            listener.getLogger().println(Messages.MSG_ADVINST_DOWNLOAD_RESUME(url, offset));
+          } else if (responseCode == kHttpRangeNotSatisfiable && offset > 0) {
+            // The previous attempt already got the whole content.
+            return;
+          } else if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new IOException("HTTP " + responseCode);
+          }
+        }
+
+        final long contentLength = conn.getContentLengthLong();
+        final long start = append ? offset : 0;
+        try (InputStream is = conn.getInputStream();
+            OutputStream os = new FileOutputStream(targetFile, append)) {
+          final byte[] buf = new byte[kBufferSize];
+          int i = 0;
+          while ((i = is.read(buf)) != -1) {
+            if (Thread.interrupted()) {
+              throw new InterruptedException();
+            }
+            os.write(buf, 0, i);
+          }
+        }
+        // A dropped connection may look like the end of the content.
+        if (contentLength >= 0 && targetFile.length() < start + contentLength) {
+          throw new IOException("Incomplete transfer, got " + (targetFile.length() - start) + " of "
+              + contentLength + " bytes");
+        }
+        return;
+      } catch (IOException e) {
+        lastError = e;
+        listener.getLogger().println(Messages.ERR_ADVINST_DOWNLOAD_FAILED(url, e.getMessage()));
+      }
+    }
+    throw lastError;
+  }
+
+  /** Computes the SHA-256 of a file on the node that holds it. */
+  static final class ComputeSha256 extends MasterToSlaveFileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String invoke(final File file, final VirtualChannel channel) throws IOException {
+      return AdvinstDigest.sha256(file);
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.stream.XMLStreamException;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+
+/**
+ * Skips a build when nothing that goes into the package changed since the last
+ * successful build of the same job and project on the node.
+ *
+ * The fingerprint covers the AIP, the commands to be executed, including the
+ * expanded content of the commands file, the Advanced Installer executable and
+ * the source files and folders referenced by the AIP. It is computed on the
+ * node, hashing the sources in parallel. After a successful build the content
+ * of the output folder is stored in a cache on the node, and restored from
+ * there when the fingerprint matches. Only the most recently used entries of
+ * the cache are kept.
+ */
+final class AdvinstIncrementalBuild {
+
+  private static final String kCacheFolder = "advinst-incremental";
+  private static final String kFingerprintFile = "fingerprint";
+  private static final String kOutputFolder = "output";
+
+  /** Number of job and project entries kept in the cache of a node. */
+  private static final int kMaxEntries = Math.max(1,
+      SystemProperties.getInteger(AdvinstIncrementalBuild.class.getName() + ".maxEntries", 10));
+
+  private final FilePath mCacheDir;
+  private final FilePath mOutputFolder;
+  private final String mFingerprint;
+
+  AdvinstIncrementalBuild(final FilePath cacheDir, final FilePath outputFolder, final String fingerprint) {
+    this.mCacheDir = cacheDir;
+    this.mOutputFolder = outputFolder;
+    this.mFingerprint = fingerprint;
+  }
+
+  /**
+   * Compute the fingerprint of a build.
+   *
+   * @return the incremental build state or null if the build cannot be
+   *         fingerprinted and must always run
+   */
+  static AdvinstIncrementalBuild create(final Run<?, ?> run, final Node node, final FilePath aipPath,
+      final List<String> commands, final AdvinstCommandsFile commandsFile, final String advinstComPath,
+      final FilePath outputFolder, final TaskListener listener) throws IOException, InterruptedException {
+    if (null == outputFolder) {
+      listener.getLogger().println(Messages.MSG_ADVINST_INCREMENTAL_NO_OUTPUT_FOLDER());
+      return null;
+    }
+
+    final FilePath nodeRoot = null == node ? null : node.getRootPath();
+    if (null == nodeRoot) {
+      return null;
+    }
+
+    final String fingerprint = aipPath.act(new ComputeFingerprint(commands, commandsFile, advinstComPath));
+    if (null == fingerprint) {
+      listener.getLogger().println(Messages.MSG_ADVINST_INCREMENTAL_UNRESOLVED_SOURCES());
+      return null;
+    }
+
+    final String cacheKey = Util.getDigestOf(run.getParent().getFullName() + "\n" + aipPath.getRemote());
+    return new AdvinstIncrementalBuild(nodeRoot.child(kCacheFolder).child(cacheKey), outputFolder, fingerprint);
+  }
+
+  /**
+   * Restore the output of the last successful build if its fingerprint
+   * matches.
+   *
+   * @return true if the output was restored and the build can be skipped
+   */
+  boolean restore(final TaskListener listener) throws IOException, InterruptedException {
+    final FilePath fingerprintFile = mCacheDir.child(kFingerprintFile);
+    final FilePath cachedOutput = mCacheDir.child(kOutputFolder);
+    if (!fingerprintFile.exists() || !cachedOutput.isDirectory()
+        || !mFingerprint.equals(fingerprintFile.readToString().trim())) {
+      return false;
+    }
+
+    listener.getLogger().println(Messages.MSG_ADVINST_INCREMENTAL_RESTORE(mFingerprint, mOutputFolder.getRemote()));
+    // Most recently used entries are kept by the eviction.
+    fingerprintFile.touch(System.currentTimeMillis());
+    mOutputFolder.mkdirs();
+    cachedOutput.copyRecursiveTo(mOutputFolder);
+    return true;
+  }
+
+  /**
+   * Store the output of a successful build in the cache.
+   */
+  void record(final TaskListener listener) throws IOException, InterruptedException {
+    final FilePath fingerprintFile = mCacheDir.child(kFingerprintFile);
+    final FilePath cachedOutput = mCacheDir.child(kOutputFolder);
+
+    // The fingerprint is written last, so an interrupted copy is never used.
+    fingerprintFile.delete();
+    if (cachedOutput.exists()) {
+      cachedOutput.deleteRecursive();
+    }
+    cachedOutput.mkdirs();
+    mOutputFolder.copyRecursiveTo(cachedOutput);
+    fingerprintFile.write(mFingerprint, "UTF-8");
+    listener.getLogger().println(Messages.MSG_ADVINST_INCREMENTAL_RECORD(mFingerprint));
+
+    mCacheDir.getParent().act(new Evict(mCacheDir.getName(), kMaxEntries));
+  }
+
+  /**
+   * Deletes the least recently used entries of the cache of a node, keeping the
+   * given number of entries and always the entry just recorded. Entries are
+   * ordered by the last time their fingerprint was written or matched.
+   */
+  static final class Evict extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+
+    private final String mKeptEntry;
+    private final int mMaxEntries;
+
+    Evict(final String keptEntry, final int maxEntries) {
+      this.mKeptEntry = keptEntry;
+      this.mMaxEntries = maxEntries;
+    }
+
+    @Override
+    public Void invoke(final File cacheRoot, final VirtualChannel channel) throws IOException, InterruptedException {
+      final File[] entries = cacheRoot.listFiles(File::isDirectory);
+      if (null == entries || entries.length <= mMaxEntries) {
+        return null;
+      }
+      Arrays.sort(entries, Comparator.comparing((File e) -> !e.getName().equals(mKeptEntry))
+          .thenComparing(Comparator.comparingLong((File e) -> new File(e, kFingerprintFile).lastModified())
+              .reversed()));
+      for (File entry : Arrays.asList(entries).subList(mMaxEntries, entries.length)) {
+        new FilePath(entry).deleteRecursive();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Computes the build fingerprint on the node that holds the AIP. Returns null
+   * if a referenced source path cannot be resolved.
+   */
+  static final class ComputeFingerprint extends MasterToSlaveFileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> mCommands;
+    private final AdvinstCommandsFile mCommandsFile;
+    private final String mAdvinstComPath;
+
+    ComputeFingerprint(final List<String> commands, final AdvinstCommandsFile commandsFile,
+        final String advinstComPath) {
+      this.mCommands = new ArrayList<String>(commands);
+      this.mCommandsFile = commandsFile;
+      this.mAdvinstComPath = advinstComPath;
+    }
+
+    @Override
+    public String invoke(final File aipFile, final VirtualChannel channel) throws IOException, InterruptedException {
+      final AdvinstSourceIndex index;
+      try (InputStream aipStream = Files.newInputStream(aipFile.toPath())) {
+        index = AdvinstAipReader.readSourceIndex(aipStream);
+      } catch (XMLStreamException ex) {
+        throw new IOException("Failed to parse " + aipFile + ": " + ex.getMessage(), ex);
+      }
+
+      List<File> sourceFiles = new ArrayList<File>();
+      for (AdvinstSourceIndex.Entry entry : index.getEntries()) {
+        // Paths based on path variables cannot be resolved here.
+        if (!entry.isResolvable()) {
+          return null;
+        }
+        sourceFiles.add(entry.resolve(aipFile.getParentFile()));
+      }
+
+      final File advinstCom = new File(mAdvinstComPath);
+      StringBuilder fingerprint = new StringBuilder();
+      fingerprint.append("aip:").append(AdvinstDigest.sha256(aipFile)).append('\n');
+      fingerprint.append("tool:").append(advinstCom.getPath()).append(':').append(advinstCom.length()).append(':')
+          .append(advinstCom.lastModified()).append('\n');
+      for (String command : mCommands) {
+        fingerprint.append("cmd:").append(command).append('\n');
+      }
+      if (null != mCommandsFile) {
+        fingerprint.append("cmdfile:").append(mCommandsFile.sha256()).append('\n');
+      }
+      for (String sourceHash : hashFiles(sourceFiles)) {
+        fingerprint.append("src:").append(sourceHash).append('\n');
+      }
+      return AdvinstDigest.sha256(fingerprint.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> hashFiles(final List<File> files) throws IOException, InterruptedException {
+      return AdvinstParallel.invoke(() -> files.parallelStream()
+          .distinct()
+          .map(f -> f.getPath() + ":" + hashFileOrMissing(f))
+          .sorted()
+          .collect(Collectors.toList()));
+    }
+
+    private static String hashFileOrMissing(final File file) {
+      try {
+        if (file.isDirectory()) {
+          return hashFolder(file);
+        }
+        return file.isFile() ? AdvinstDigest.sha256(file) : "missing";
+      } catch (IOException e) {
+        return "unreadable";
+      }
+    }
+
+    /**
+     * Hash of the relative paths, sizes and contents of the files in a folder,
+     * so adding, removing or changing a file in a referenced folder changes the
+     * fingerprint.
+     */
+    private static String hashFolder(final File folder) throws IOException {
+      final Path root = folder.toPath();
+      final List<Path> files;
+      try (Stream<Path> paths = Files.walk(root)) {
+        files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+      }
+
+      final StringBuilder listing = new StringBuilder();
+      for (Path file : files) {
+        listing.append(root.relativize(file).toString().replace(File.separatorChar, '/')).append(':')
+            .append(Files.size(file)).append(':').append(AdvinstDigest.sha256(file.toFile())).append('\n');
+      }
+      final String[] lines = listing.toString().split("\n");
+      Arrays.sort(lines);
+      return "dir:" + AdvinstDigest.sha256(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
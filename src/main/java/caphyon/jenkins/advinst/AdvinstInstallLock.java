@@ -0,0 +1,213 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Coordinates the deployments of Advanced Installer, per node and tool root.
+ *
+ * On the controller, concurrent deployments of the same tool root on the same
+ * node share a single in-flight operation: the first caller runs it and the
+ * others wait for its result. On the node, the deployment holds an exclusive
+ * file lock next to the tool root, so deployments started by other
+ * controllers or agent processes sharing the folder wait for each other.
+ */
+final class AdvinstInstallLock {
+
+  private static final String kLockSuffix = ".lock";
+  private static final long kRetryMillis = TimeUnit.SECONDS.toMillis(1);
+
+  private static final Map<String, CompletableFuture<FilePath>> kInFlight = new ConcurrentHashMap<String, CompletableFuture<FilePath>>();
+
+  /** File locks held by this JVM, by lock file path. Only used on the nodes. */
+  private static final Map<String, HeldLock> kHeldLocks = new ConcurrentHashMap<String, HeldLock>();
+
+  private AdvinstInstallLock() {
+  }
+
+  /** A deployment of the tool. */
+  interface Deployment {
+    FilePath deploy() throws IOException, InterruptedException;
+  }
+
+  /**
+   * Run a deployment of a tool root, unless one is already running for the
+   * same node and root, in which case its result is awaited instead.
+   */
+  static FilePath singleFlight(final Node node, final FilePath toolRoot, final TaskListener listener,
+      final Deployment deployment) throws IOException, InterruptedException {
+    return singleFlight(node.getNodeName(), node.getDisplayName(), toolRoot, listener, deployment);
+  }
+
+  /**
+   * A deployment that fails with an {@link IOException} fails all the callers
+   * waiting for it. When it ends for any other reason, such as its caller being
+   * interrupted or cancelled, the waiting callers try again, so one of them
+   * runs the deployment in its place.
+   */
+  static FilePath singleFlight(final String nodeName, final String nodeDisplayName, final FilePath toolRoot,
+      final TaskListener listener, final Deployment deployment) throws IOException, InterruptedException {
+    final String key = nodeName + "\n" + toolRoot.getRemote();
+    boolean logged = false;
+    while (true) {
+      final CompletableFuture<FilePath> future = new CompletableFuture<FilePath>();
+      final CompletableFuture<FilePath> inFlight = kInFlight.putIfAbsent(key, future);
+      if (null == inFlight) {
+        return deploy(key, future, toolRoot, listener, deployment);
+      }
+
+      if (!logged) {
+        listener.getLogger().println(Messages.MSG_ADVINST_INSTALL_WAITING(toolRoot.getRemote(), nodeDisplayName));
+        logged = true;
+      }
+      try {
+        return inFlight.get();
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw new AdvinstInstaller.InstallationFailedException(cause.getMessage());
+        }
+        // The deployment was not the cause, try again.
+      } catch (CancellationException e) {
+        // Try again.
+      }
+    }
+  }
+
+  private static FilePath deploy(final String key, final CompletableFuture<FilePath> future,
+      final FilePath toolRoot, final TaskListener listener, final Deployment deployment)
+      throws IOException, InterruptedException {
+    final FilePath result;
+    try {
+      result = withFileLock(toolRoot, listener, deployment);
+    } catch (Throwable t) {
+      // Removed first, so the waiters trying again do not find it.
+      kInFlight.remove(key, future);
+      future.completeExceptionally(t);
+      throw t;
+    }
+    kInFlight.remove(key, future);
+    future.complete(result);
+    return result;
+  }
+
+  private static FilePath withFileLock(final FilePath toolRoot, final TaskListener listener,
+      final Deployment deployment) throws IOException, InterruptedException {
+    final FilePath lockFile = toolRoot.sibling(toolRoot.getName() + kLockSuffix);
+    boolean logged = false;
+    while (!lockFile.act(new TryAcquire())) {
+      if (!logged) {
+        listener.getLogger().println(Messages.MSG_ADVINST_INSTALL_LOCKED(lockFile.getRemote()));
+        logged = true;
+      }
+      Thread.sleep(kRetryMillis);
+    }
+
+    try {
+      return deployment.deploy();
+    } finally {
+      lockFile.act(new Release());
+    }
+  }
+
+  /**
+   * Takes the exclusive lock of a file, without waiting. The lock is released
+   * by {@link Release} or when the channel to the controller closes.
+   */
+  static final class TryAcquire extends MasterToSlaveFileCallable<Boolean> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Boolean invoke(final File file, final VirtualChannel channel) throws IOException {
+      final String path = file.getAbsolutePath();
+      if (kHeldLocks.containsKey(path)) {
+        return false;
+      }
+
+      file.getParentFile().mkdirs();
+      final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      FileLock lock = null;
+      try {
+        lock = fileChannel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // Held by another thread of this JVM.
+      }
+      if (null == lock) {
+        fileChannel.close();
+        return false;
+      }
+
+      final HeldLock held = new HeldLock(fileChannel, Channel.current());
+      if (null != kHeldLocks.putIfAbsent(path, held)) {
+        fileChannel.close();
+        return false;
+      }
+      if (null != held.mChannel) {
+        held.mChannel.addListener(held.mListener = new Channel.Listener() {
+          @Override
+          public void onClosed(final Channel closed, final IOException cause) {
+            release(path);
+          }
+        });
+      }
+      return true;
+    }
+  }
+
+  /** Releases a lock taken by {@link TryAcquire}. */
+  static final class Release extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Void invoke(final File file, final VirtualChannel channel) {
+      release(file.getAbsolutePath());
+      return null;
+    }
+  }
+
+  private static void release(final String path) {
+    final HeldLock held = kHeldLocks.remove(path);
+    if (null == held) {
+      return;
+    }
+    if (null != held.mListener) {
+      held.mChannel.removeListener(held.mListener);
+    }
+    try {
+      // Closing the file channel releases its lock.
+      held.mFileChannel.close();
+    } catch (IOException e) {
+      // Nothing else to release.
+    }
+  }
+
+  /** A file lock and the remoting channel it was taken for. */
+  private static final class HeldLock {
+    private final FileChannel mFileChannel;
+    private final Channel mChannel;
+    private Channel.Listener mListener;
+
+    HeldLock(final FileChannel fileChannel, final Channel channel) {
+      this.mFileChannel = fileChannel;
+      this.mChannel = channel;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import hudson.remoting.VirtualChannel;
+import hudson.util.Secret;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Describes an Advanced Installer deployment made by {@link AdvinstInstaller}.
+ * It is stored in the tool root so a later tool resolution can check the
+ * deployment with a single call on the node, without running any process. The
+ * check only reads the manifest and the Advanced Installer executable. The
+ * manifest also holds a hash of the paths and sizes of the deployed files,
+ * which is only checked when the tool is deployed again.
+ */
+final class AdvinstInstallManifest implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  static final String kFileName = ".advinst-manifest";
+
+  private static final String kVersionKey = "version";
+  private static final String kLicenseHashKey = "licenseHash";
+  private static final String kPowerShellKey = "powerShell";
+  private static final String kFilesHashKey = "filesHash";
+
+  private final String mVersion;
+  private final String mLicenseHash;
+  private final boolean mPowerShell;
+  private final String mFilesHash;
+
+  AdvinstInstallManifest(final String version, final String licenseHash, final boolean powerShell,
+      final String filesHash) {
+    this.mVersion = version;
+    this.mLicenseHash = licenseHash;
+    this.mPowerShell = powerShell;
+    this.mFilesHash = filesHash;
+  }
+
+  String getVersion() {
+    return mVersion;
+  }
+
+  /**
+   * @return hash of the deployed files, or null if not recorded
+   */
+  String getFilesHash() {
+    return mFilesHash;
+  }
+
+  /**
+   * @return true if the deployment has the given configuration
+   */
+  boolean matches(final String version, final String licenseHash, final boolean powerShell) {
+    return mVersion.equals(version) && mLicenseHash.equals(licenseHash) && mPowerShell == powerShell;
+  }
+
+  static String hashLicense(final Secret license) {
+    return AdvinstDigest.sha256(Secret.toString(license).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Hash of the relative paths and sizes of all the files in the tool root.
+   * File contents are not read, so this stays cheap for large deployments.
+   */
+  private static String hashFiles(final File root) throws IOException {
+    final Path rootPath = root.toPath();
+    try (Stream<Path> files = Files.walk(rootPath)) {
+      final String listing = files.filter(Files::isRegularFile)
+          .filter(p -> !p.getFileName().toString().equals(kFileName))
+          .map(p -> {
+            try {
+              return rootPath.relativize(p) + ":" + Files.size(p);
+            } catch (IOException e) {
+              return rootPath.relativize(p) + ":?";
+            }
+          })
+          .sorted()
+          .collect(Collectors.joining("\n"));
+      return AdvinstDigest.sha256(listing.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Reads the manifest from the tool root. Returns null if there is no manifest
+   * or the Advanced Installer executable is missing. The other files of the
+   * tool root are not read.
+   */
+  static final class Read extends MasterToSlaveFileCallable<AdvinstInstallManifest> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public AdvinstInstallManifest invoke(final File root, final VirtualChannel channel) throws IOException {
+      final File manifestFile = new File(root, kFileName);
+      if (!manifestFile.isFile() || !new File(root, AdvinstInstallation.advinstComSubPath).isFile()) {
+        return null;
+      }
+
+      Properties properties = new Properties();
+      try (InputStream is = Files.newInputStream(manifestFile.toPath())) {
+        properties.load(is);
+      }
+      final String version = properties.getProperty(kVersionKey);
+      final String licenseHash = properties.getProperty(kLicenseHashKey);
+      if (null == version || null == licenseHash) {
+        return null;
+      }
+      return new AdvinstInstallManifest(version, licenseHash,
+          Boolean.parseBoolean(properties.getProperty(kPowerShellKey)), properties.getProperty(kFilesHashKey));
+    }
+  }
+
+  /**
+   * Checks the files of the tool root against the hash recorded when they were
+   * deployed. It walks the whole tool root, so it is only used when the tool is
+   * deployed again, never on the fast path.
+   */
+  static final class VerifyFiles extends MasterToSlaveFileCallable<Boolean> {
+    private static final long serialVersionUID = 1L;
+
+    private final String mFilesHash;
+
+    VerifyFiles(final String filesHash) {
+      this.mFilesHash = filesHash;
+    }
+
+    @Override
+    public Boolean invoke(final File root, final VirtualChannel channel) throws IOException {
+      return null != mFilesHash && mFilesHash.equals(hashFiles(root));
+    }
+  }
+
+  /** Writes the manifest of a finished deployment in the tool root. */
+  static final class Write extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+
+    private final String mVersion;
+    private final String mLicenseHash;
+    private final boolean mPowerShell;
+
+    Write(final String version, final String licenseHash, final boolean powerShell) {
+      this.mVersion = version;
+      this.mLicenseHash = licenseHash;
+      this.mPowerShell = powerShell;
+    }
+
+    @Override
+    public Void invoke(final File root, final VirtualChannel channel) throws IOException {
+      Properties properties = new Properties();
+      properties.setProperty(kVersionKey, mVersion);
+      properties.setProperty(kLicenseHashKey, mLicenseHash);
+      properties.setProperty(kPowerShellKey, String.valueOf(mPowerShell));
+      properties.setProperty(kFilesHashKey, hashFiles(root));
+
+      final File manifestFile = new File(root, kFileName);
+      final File tempFile = new File(root, kFileName + ".tmp");
+      try (OutputStream os = Files.newOutputStream(tempFile.toPath())) {
+        properties.store(os, "Advanced Installer deployment");
+      }
+      Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      return null;
+    }
+  }
+}
@@ -1,16 +1,13 @@
 package caphyon.jenkins.advinst;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
 
 import javax.servlet.ServletException;
 import com.sun.jna.platform.win32.VerRsrc.VS_FIXEDFILEINFO;
 import com.sun.jna.platform.win32.VersionUtil;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -25,6 +22,7 @@ import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.tools.InstallSourceProperty;
 import hudson.tools.ToolInstallation;
 import hudson.tools.ToolInstaller;
 import hudson.tools.ToolInstallerDescriptor;
@@ -43,6 +41,8 @@ public final class AdvinstInstaller extends ToolInstaller {
   private final String mAdvinstVersion;
   private final Secret mAdvinstLicense;
   private final boolean mEnablePowerShell;
+  private String mAdvinstSha256;
+  private boolean mAdvinstPrefetch;
 
   @DataBoundConstructor
   public AdvinstInstaller(final String label, final String advinstVersion, final Secret advinstLicense,
@@ -65,16 +65,92 @@ public final class AdvinstInstaller extends ToolInstaller {
     return mEnablePowerShell;
   }
 
+  public String getAdvinstSha256() {
+    return mAdvinstSha256;
+  }
+
+  @DataBoundSetter
+  public void setAdvinstSha256(final String advinstSha256) {
+    this.mAdvinstSha256 = Util.fixEmptyAndTrim(advinstSha256);
+  }
+
+  /**
+   * @return true if the tool should be deployed on the matching nodes as soon
+   *         as they come online
+   */
+  public boolean getAdvinstPrefetch() {
+    return mAdvinstPrefetch;
+  }
+
+  @DataBoundSetter
+  public void setAdvinstPrefetch(final boolean advinstPrefetch) {
+    this.mAdvinstPrefetch = advinstPrefetch;
+  }
+
+  /**
+   * @return the installer of an installation used on a node, or null if the
+   *         installation is not deployed by an {@link AdvinstInstaller} there.
+   *         Only the first installer applicable to the node is used.
+   */
+  static AdvinstInstaller forNode(final AdvinstInstallation installation, final Node node) {
+    final InstallSourceProperty installSource = installation.getProperties().get(InstallSourceProperty.class);
+    if (null == installSource) {
+      return null;
+    }
+    for (ToolInstaller installer : installSource.installers) {
+      if (installer.appliesTo(node)) {
+        return installer instanceof AdvinstInstaller ? (AdvinstInstaller) installer : null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the folder the tool is deployed to on a node
+   */
+  FilePath getToolRoot(final ToolInstallation tool, final Node node) {
+    return preferredLocation(tool, node);
+  }
+
   @Override
   @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
   public FilePath performInstallation(final ToolInstallation tool, final Node node, final TaskListener listener)
       throws IOException, InterruptedException {
 
+    final long catalogStart = System.nanoTime();
     AdvinstVersions versions = new AdvinstVersions();
     if (versions.isDeprecated(mAdvinstVersion)) {
       throw new InstallationFailedException(
           Messages.ERROR_ADVINST_DEPRECATED_VERSION(versions.getMinimumAllowedVersion(), mAdvinstVersion));
     }
+    AdvinstTimings.record(AdvinstTimings.kReleaseCatalog, catalogStart);
+
+    final FilePath advinstRootPath = preferredLocation(tool, node);
+
+    // Fast path: the deployment matches the configuration, nothing else to do.
+    final String licenseHash = AdvinstInstallManifest.hashLicense(mAdvinstLicense);
+    final AdvinstInstallManifest manifest = advinstRootPath.act(new AdvinstInstallManifest.Read());
+    if (null != manifest && manifest.matches(mAdvinstVersion, licenseHash, mEnablePowerShell)) {
+      AdvinstPlacement.markWarm(node, tool.getName(), mAdvinstVersion);
+      return advinstRootPath;
+    }
+
+    // One deployment at a time per node and tool root, the others wait for it.
+    final FilePath deployedRoot = AdvinstInstallLock.singleFlight(node, advinstRootPath, listener,
+        () -> deploy(node, advinstRootPath, licenseHash, listener));
+    AdvinstPlacement.markWarm(node, tool.getName(), mAdvinstVersion);
+    return deployedRoot;
+  }
+
+  @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE")
+  private FilePath deploy(final Node node, final FilePath advinstRootPath, final String licenseHash,
+      final TaskListener listener) throws IOException, InterruptedException {
+
+    // The deployment may have been completed while waiting for the lock.
+    final AdvinstInstallManifest manifest = advinstRootPath.act(new AdvinstInstallManifest.Read());
+    if (null != manifest && manifest.matches(mAdvinstVersion, licenseHash, mEnablePowerShell)) {
+      return advinstRootPath;
+    }
 
     // Gather properties for the node to install on
     VirtualChannel channel = node.getChannel();
@@ -93,8 +169,14 @@ public final class AdvinstInstaller extends ToolInstaller {
       throw new InstallationFailedException(Messages.ERR_ADVINST_UNSUPPORTED_OS_VERSION());
     }
 
-    final FilePath advinstRootPath = preferredLocation(tool, node);
-    if (!isUpToDate(advinstRootPath, node)) {
+    if (isUpToDate(advinstRootPath, manifest)) {
+      // The files are reused, report the ones changed since they were deployed.
+      // Advanced Installer may write its own files there, so this never causes
+      // a new deployment.
+      if (null != manifest && !advinstRootPath.act(new AdvinstInstallManifest.VerifyFiles(manifest.getFilesHash()))) {
+        listener.getLogger().println(Messages.MSG_ADVINST_DEPLOYMENT_CHANGED(advinstRootPath));
+      }
+    } else {
       final String downloadUrl = getAdvinstDownloadUrl(node);
       final String message = Messages.MSG_ADVINST_INSTALL(downloadUrl, advinstRootPath, node.getDisplayName());
       listener.getLogger().append(message);
@@ -106,13 +188,17 @@ public final class AdvinstInstaller extends ToolInstaller {
 
           FilePath tempDownloadFile = tempDownloadDir.getFilePath().child("advinst.msi");
 
+          final long downloadStart = System.nanoTime();
           if (!downloadFile(downloadUrl, tempDownloadFile, listener)) {
             throw new InstallationFailedException(Messages.ERR_ADVINST_DOWNLOAD_FAILED(downloadUrl, tempDownloadFile));
           }
+          AdvinstTimings.record(AdvinstTimings.kDownload, downloadStart);
 
+          final long extractStart = System.nanoTime();
           if (!extractMSI(tempDownloadFile, advinstRootPath, node, listener)) {
             throw new InstallationFailedException(Messages.ERR_ADVINST_EXTRACT_FAILED(downloadUrl, advinstRootPath));
           }
+          AdvinstTimings.record(AdvinstTimings.kExtract, extractStart);
         }
         advistRootPathDeleter.release();
       }
@@ -120,6 +206,7 @@ public final class AdvinstInstaller extends ToolInstaller {
 
     FilePath advinstComPath = advinstRootPath.child(AdvinstInstallation.advinstComSubPath);
     if (advinstComPath.exists()) {
+      final long registrationStart = System.nanoTime();
       if (!registerAdvinst(advinstComPath, mAdvinstLicense, node, listener)) {
         throw new InstallationFailedException(Messages.ERR_ADVINST_REGISTER_FAILED());
       }
@@ -127,12 +214,20 @@ public final class AdvinstInstaller extends ToolInstaller {
       if (!enablePowerShell(advinstComPath, mEnablePowerShell, node, listener)) {
         throw new InstallationFailedException(Messages.ERR_ADVINST_REGISTER_COM_FAILED());
       }
+      AdvinstTimings.record(AdvinstTimings.kRegistration, registrationStart);
 
+      advinstRootPath.act(new AdvinstInstallManifest.Write(mAdvinstVersion, licenseHash, mEnablePowerShell));
     }
     return advinstRootPath;
   }
 
-  private boolean isUpToDate(final FilePath expectedRoot, final Node node) throws IOException, InterruptedException {
+  private boolean isUpToDate(final FilePath expectedRoot, final AdvinstInstallManifest manifest)
+      throws IOException, InterruptedException {
+
+    // A deployment of a different version must be replaced.
+    if (null != manifest && !manifest.getVersion().equals(mAdvinstVersion)) {
+      return false;
+    }
 
     FilePath advinstComPath = expectedRoot.child(AdvinstInstallation.advinstComSubPath);
     // Check if the advinst executable exists.
@@ -144,34 +239,23 @@ public final class AdvinstInstaller extends ToolInstaller {
   }
 
   private boolean downloadFile(final String fileURL, final FilePath targetFile, final TaskListener listener)
-      throws IOException {
-    InputStream is = null;
-    OutputStream os = null;
-
+      throws IOException, InterruptedException {
     try {
-      final URL url = new URL(fileURL);
-      final URLConnection conn = url.openConnection();
-
-      conn.setUseCaches(false);
-      is = conn.getInputStream();
-      listener.getLogger().append(Messages.MSG_ADVINST_DOWNLOAD_PROGRESS(fileURL, targetFile.getRemote()));
-      os = targetFile.write();
-      final int bufferSize = 8192;
-      final byte[] buf = new byte[bufferSize];
-      int i = 0;
-      while ((i = is.read(buf)) != -1) {
-        os.write(buf, 0, i);
+      // The package is downloaded once on the controller and then copied to the
+      // node from the controller cache.
+      final AdvinstDownloadCache.Entry cachedMsi = AdvinstDownloadCache.get(mAdvinstVersion, fileURL, mAdvinstSha256,
+          listener);
+      listener.getLogger().println(Messages.MSG_ADVINST_DOWNLOAD_PROGRESS(cachedMsi.getMsiFile(), targetFile.getRemote()));
+      new FilePath(cachedMsi.getMsiFile()).copyTo(targetFile);
+
+      final String targetSha256 = targetFile.act(new AdvinstDownloadCache.ComputeSha256());
+      if (!cachedMsi.getSha256().equalsIgnoreCase(targetSha256)) {
+        listener.error(Messages.ERR_ADVINST_CHECKSUM_MISMATCH(targetFile.getRemote(), cachedMsi.getSha256(), targetSha256));
+        return false;
       }
-    } catch (final Exception e) {
+    } catch (final IOException e) {
       listener.error(Messages.ERR_ADVINST_DOWNLOAD_FAILED(fileURL, e.getMessage()));
       return false;
-    } finally {
-      if (is != null) {
-        is.close();
-      }
-      if (os != null) {
-        os.close();
-      }
     }
     return true;
   }
@@ -235,12 +319,16 @@ public final class AdvinstInstaller extends ToolInstaller {
     if (envVars.containsKey(kAdvinstURLEnvVar)) {
       downloadUrl = envVars.get(kAdvinstURLEnvVar);
     } else {
-      downloadUrl = String.format(kAdvinstUrlTemplate, this.mAdvinstVersion);
+      downloadUrl = getDefaultDownloadUrl(this.mAdvinstVersion);
     }
 
     return downloadUrl;
   }
 
+  static String getDefaultDownloadUrl(final String advinstVersion) {
+    return String.format(kAdvinstUrlTemplate, advinstVersion);
+  }
+
   private boolean enablePowerShell(final FilePath advinstPath, final boolean enablePowerShell, final Node node,
       final TaskListener listener) throws IOException, InterruptedException {
 
@@ -302,7 +390,7 @@ public final class AdvinstInstaller extends ToolInstaller {
     }
   }
 
-  private static class GetWin32FileVersion extends MasterToSlaveCallable<String, InterruptedException> {
+  static class GetWin32FileVersion extends MasterToSlaveCallable<String, InterruptedException> {
     private static final long serialVersionUID = 1L;
     private final String filePath;
 
@@ -0,0 +1,100 @@
+package caphyon.jenkins.advinst;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+
+/**
+ * Pipeline step returning the names of the builds defined in an Advanced
+ * Installer project, to fan them out across nodes:
+ *
+ * <pre>
+ * def builds = advinstListBuilds aipProjectPath: 'setup.aip'
+ * parallel builds.collectEntries { b -&gt;
+ *   [(b): { node('windows') { checkout scm; advinstBuild aipProjectPath: 'setup.aip', aipProjectBuild: b } }]
+ * }
+ * echo "${advinstOutputManifest().fileCount} package files"
+ * </pre>
+ *
+ * The project is parsed on the node that holds it, and the result is cached.
+ */
+public final class AdvinstListBuildsStep extends Step {
+
+  private final String mAipProjectPath;
+
+  @DataBoundConstructor
+  public AdvinstListBuildsStep(final String aipProjectPath) {
+    this.mAipProjectPath = aipProjectPath;
+  }
+
+  public String getAipProjectPath() {
+    return mAipProjectPath;
+  }
+
+  @Override
+  public StepExecution start(final StepContext context) throws Exception {
+    return new Execution(mAipProjectPath, context);
+  }
+
+  private static final class Execution extends SynchronousNonBlockingStepExecution<List<String>> {
+    private static final long serialVersionUID = 1L;
+
+    private final String mAipProjectPath;
+
+    Execution(final String aipProjectPath, final StepContext context) {
+      super(context);
+      this.mAipProjectPath = aipProjectPath;
+    }
+
+    @Override
+    protected List<String> run() throws Exception {
+      final FilePath workspace = getContext().get(FilePath.class);
+      final EnvVars env = getContext().get(EnvVars.class);
+      final FilePath aipPath = workspace.child(Util.replaceMacro(Util.fixNull(mAipProjectPath), env));
+      if (!aipPath.exists()) {
+        throw new AbortException(Messages.ERR_ADVINST_AIP_NOT_FOUND(aipPath.getRemote()));
+      }
+      try {
+        return new ArrayList<String>(new AdvinstAipReader(aipPath).getBuilds());
+      } catch (AdvinstException e) {
+        throw new AbortException(e.getMessage());
+      }
+    }
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends StepDescriptor {
+
+    @Override
+    public String getFunctionName() {
+      return "advinstListBuilds";
+    }
+
+    @Override
+    public String getDisplayName() {
+      return Messages.ADVINST_LIST_BUILDS_STEP();
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      Set<Class<?>> context = new HashSet<Class<?>>();
+      Collections.addAll(context, FilePath.class, EnvVars.class);
+      return Collections.unmodifiableSet(context);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package caphyon.jenkins.advinst;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import hudson.console.LineTransformationOutputStream;
+
+/**
+ * Condenses the Advanced Installer output before it is sent to the build log.
+ * It runs on the node executing Advanced Installer, so the collapsed lines never
+ * cross the remoting channel.
+ *
+ * The output is split in phases. The first line of each phase, warnings and
+ * errors are forwarded as they are. All the other lines, mostly per command and
+ * per file progress, are counted and replaced by a periodic summary. Every line, forwarded or not, is
+ * also written to the full log stream.
+ */
+final class AdvinstLogFilter extends LineTransformationOutputStream {
+
+  private static final long kSummaryIntervalMillis = TimeUnit.SECONDS.toMillis(30);
+
+  private static final Pattern kProblemPattern = Pattern.compile("\\b(error|warning|failed|fatal)\\b");
+
+  /** Phases of an Advanced Installer run, in the order they are detected. */
+  enum Phase {
+    LOAD("Load", "^(loading|opening)\\b"),
+    COMMANDS("Edit commands", "^\\[\\s*\\d+\\s*/\\s*\\d+\\s*\\]|^executing command"),
+    FILES("File gathering", "^(building|gathering|collecting|scanning|preparing)\\b"),
+    COMPRESSION("Compression", "^(compressing|creating cab|building cab)"),
+    SIGNING("Signing", "^(signing|digitally signing|sign)\\b"),
+    DONE("Done", "^(total build time|build finished|done\\b)");
+
+    private final String mDisplayName;
+    private final Pattern mStartPattern;
+
+    Phase(final String displayName, final String startPattern) {
+      this.mDisplayName = displayName;
+      this.mStartPattern = Pattern.compile(startPattern);
+    }
+
+    String getDisplayName() {
+      return mDisplayName;
+    }
+
+    boolean startsWith(final String line) {
+      return mStartPattern.matcher(line).find();
+    }
+  }
+
+  private final OutputStream mLog;
+  private final OutputStream mFullLog;
+  private final Charset mCharset;
+
+  private Phase mPhase = null;
+  private long mCollapsedLines = 0;
+  private long mLastSummary;
+
+  /**
+   * @param log     stream receiving the condensed output
+   * @param fullLog stream receiving the complete output, closed with this
+   *                stream
+   * @param charset charset of the Advanced Installer output
+   */
+  AdvinstLogFilter(final OutputStream log, final OutputStream fullLog, final Charset charset) {
+    this.mLog = log;
+    this.mFullLog = fullLog;
+    this.mCharset = charset;
+    this.mLastSummary = System.currentTimeMillis();
+  }
+
+  /**
+   * Create a filter writing the full log, GZIP compressed, to a file.
+   */
+  static AdvinstLogFilter create(final OutputStream log, final String fullLogPath, final Charset charset)
+      throws IOException {
+    return new AdvinstLogFilter(log, new GZIPOutputStream(Files.newOutputStream(Paths.get(fullLogPath))), charset);
+  }
+
+  @Override
+  protected void eol(final byte[] b, final int len) throws IOException {
+    mFullLog.write(b, 0, len);
+
+    final String line = trimEOL(new String(b, 0, len, mCharset)).trim().toLowerCase(Locale.ENGLISH);
+    final Phase phase = detectPhase(line);
+    if (null != phase) {
+      writeSummary();
+      mPhase = phase;
+      writeLine(Messages.MSG_ADVINST_LOG_PHASE(phase.getDisplayName()));
+      mLog.write(b, 0, len);
+    } else if (kProblemPattern.matcher(line).find()) {
+      mLog.write(b, 0, len);
+    } else if (!line.isEmpty()) {
+      mCollapsedLines++;
+      if (System.currentTimeMillis() - mLastSummary >= kSummaryIntervalMillis) {
+        writeSummary();
+      }
+    }
+  }
+
+  /**
+   * @return the phase started by the line, or null if the line belongs to the
+   *         current phase. Phases only move forward.
+   */
+  private Phase detectPhase(final String line) {
+    for (Phase phase : Phase.values()) {
+      if (null != mPhase && phase.ordinal() <= mPhase.ordinal()) {
+        continue;
+      }
+      if (phase.startsWith(line)) {
+        return phase;
+      }
+    }
+    return null;
+  }
+
+  private void writeSummary() throws IOException {
+    mLastSummary = System.currentTimeMillis();
+    if (0 == mCollapsedLines) {
+      return;
+    }
+    final String phaseName = null == mPhase ? "-" : mPhase.getDisplayName();
+    writeLine(Messages.MSG_ADVINST_LOG_SUMMARY(phaseName, mCollapsedLines));
+    mCollapsedLines = 0;
+  }
+
+  private void writeLine(final String line) throws IOException {
+    mLog.write((line + System.lineSeparator()).getBytes(mCharset));
+  }
+
+  @Override
+  public void flush() throws IOException {
+    mLog.flush();
+    mFullLog.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+      writeSummary();
+      mLog.flush();
+    } finally {
+      mFullLog.close();
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.ArtifactManager;
+import jenkins.util.BuildListenerAdapter;
+import jenkins.util.SystemProperties;
+
+/**
+ * Lists and hashes the files produced by a build step, and archives them.
+ */
+final class AdvinstManifest {
+
+  /** Number of archiving streams running at the same time. */
+  private static final int kArchiveStreams = Math.max(1,
+      SystemProperties.getInteger(AdvinstManifest.class.getName() + ".archiveStreams", 4));
+
+  private AdvinstManifest() {
+  }
+
+  /**
+   * Archive the files of a manifest as build artifacts. The files are split in
+   * groups of about the same size, each group being streamed directly from the
+   * node by the artifact manager of the run, in parallel with the others.
+   *
+   * @param outputFolder folder holding the files, on the node
+   * @param files        files to archive, relative to the output folder
+   */
+  static void archive(final Run<?, ?> run, final FilePath outputFolder, final Launcher launcher,
+      final TaskListener listener, final List<Entry> files) throws IOException, InterruptedException {
+    if (files.isEmpty()) {
+      return;
+    }
+
+    // Largest files first, each one to the group with the lowest total size.
+    final List<Entry> sorted = new ArrayList<Entry>(files);
+    sorted.sort(Comparator.comparingLong(Entry::getSize).reversed());
+    final int groupCount = Math.min(kArchiveStreams, sorted.size());
+    final List<Map<String, String>> groups = new ArrayList<Map<String, String>>(groupCount);
+    final long[] groupSizes = new long[groupCount];
+    for (int i = 0; i < groupCount; i++) {
+      groups.add(new LinkedHashMap<String, String>());
+    }
+    for (Entry file : sorted) {
+      int smallest = 0;
+      for (int i = 1; i < groupCount; i++) {
+        if (groupSizes[i] < groupSizes[smallest]) {
+          smallest = i;
+        }
+      }
+      groups.get(smallest).put(file.getPath(), file.getPath());
+      groupSizes[smallest] += file.getSize();
+    }
+
+    // Picks the manager of the configured ArtifactManagerFactory, if not done
+    // yet, as ArtifactArchiver does. getArtifactManager() would fall back to a
+    // local manager the run does not use to read its artifacts.
+    final ArtifactManager artifactManager = run.pickArtifactManager();
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>(groupCount);
+    for (Map<String, String> group : groups) {
+      futures.add(Computer.threadPoolForRemoting.submit(() -> {
+        artifactManager.archive(outputFolder, launcher, BuildListenerAdapter.wrap(listener), group);
+        return null;
+      }));
+    }
+
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /** A file of the manifest. */
+  public static final class Entry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String mPath;
+    private final long mSize;
+    private final String mSha256;
+
+    Entry(final String path, final long size, final String sha256) {
+      this.mPath = path;
+      this.mSize = size;
+      this.mSha256 = sha256;
+    }
+
+    /**
+     * @return path relative to the output folder, with '/' separators
+     */
+    public String getPath() {
+      return mPath;
+    }
+
+    /**
+     * @return path relative to the output folder, each segment URL encoded, to
+     *         link the archived artifact
+     */
+    public String getUrlPath() {
+      final StringBuilder urlPath = new StringBuilder();
+      for (String segment : mPath.split("/")) {
+        if (urlPath.length() > 0) {
+          urlPath.append('/');
+        }
+        urlPath.append(Util.rawEncode(segment));
+      }
+      return urlPath.toString();
+    }
+
+    public long getSize() {
+      return mSize;
+    }
+
+    public String getSha256() {
+      return mSha256;
+    }
+  }
+
+  /**
+   * Lists the files of a folder and computes their SHA-256, hashing the files
+   * in parallel in the shared pool of the node. The entries are sorted by path;
+   * a missing folder yields no entries.
+   */
+  static final class Scan extends MasterToSlaveFileCallable<List<Entry>> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public List<Entry> invoke(final File folder, final VirtualChannel channel)
+        throws IOException, InterruptedException {
+      if (!folder.isDirectory()) {
+        return Collections.emptyList();
+      }
+
+      final Path root = folder.toPath();
+      final List<Path> files;
+      try (Stream<Path> paths = Files.walk(root)) {
+        files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+      }
+
+      return AdvinstParallel.invoke(() -> files.parallelStream().map(file -> {
+        try {
+          return new Entry(root.relativize(file).toString().replace('\\', '/'), Files.size(file),
+              AdvinstDigest.sha256(file.toFile()));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).collect(Collectors.toList()));
+    }
+  }
+}
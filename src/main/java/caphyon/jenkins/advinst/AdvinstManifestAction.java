@@ -0,0 +1,114 @@
+package caphyon.jenkins.advinst;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+/**
+ * Files produced by the Advanced Installer build steps of a run, with their
+ * sizes and SHA-256 hashes.
+ */
+public final class AdvinstManifestAction implements RunAction2 {
+
+  private final List<Output> mOutputs = new ArrayList<Output>();
+  private transient Run<?, ?> mRun;
+
+  @Override
+  public void onAttached(final Run<?, ?> run) {
+    this.mRun = run;
+  }
+
+  @Override
+  public void onLoad(final Run<?, ?> run) {
+    this.mRun = run;
+  }
+
+  public Run<?, ?> getRun() {
+    return mRun;
+  }
+
+  @Override
+  public String getIconFileName() {
+    return "fingerprint.png";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return Messages.MSG_ADVINST_MANIFEST();
+  }
+
+  @Override
+  public String getUrlName() {
+    return "advinstManifest";
+  }
+
+  public List<Output> getOutputs() {
+    synchronized (mOutputs) {
+      return new ArrayList<Output>(mOutputs);
+    }
+  }
+
+  /**
+   * Add the output of a build step to its run.
+   *
+   * @param run          run of the build step
+   * @param project      path of the built project
+   * @param outputFolder folder holding the files, on the node
+   * @param files        files of the output folder
+   * @param archived     true if the files were archived as build artifacts
+   */
+  static void add(final Run<?, ?> run, final String project, final String outputFolder,
+      final List<AdvinstManifest.Entry> files, final boolean archived) {
+    final Output output = new Output(project, outputFolder, files, archived);
+    AdvinstManifestAction action;
+    synchronized (run) {
+      action = run.getAction(AdvinstManifestAction.class);
+      if (null == action) {
+        action = new AdvinstManifestAction();
+        run.addAction(action);
+      }
+    }
+    synchronized (action.mOutputs) {
+      action.mOutputs.add(output);
+    }
+  }
+
+  /** Output of a build step. */
+  public static final class Output {
+    private final String mProject;
+    private final String mOutputFolder;
+    private final List<AdvinstManifest.Entry> mFiles;
+    private final boolean mArchived;
+
+    Output(final String project, final String outputFolder, final List<AdvinstManifest.Entry> files,
+        final boolean archived) {
+      this.mProject = project;
+      this.mOutputFolder = outputFolder;
+      this.mFiles = Collections.unmodifiableList(new ArrayList<AdvinstManifest.Entry>(files));
+      this.mArchived = archived;
+    }
+
+    public String getProject() {
+      return mProject;
+    }
+
+    public String getOutputFolder() {
+      return mOutputFolder;
+    }
+
+    public List<AdvinstManifest.Entry> getFiles() {
+      return mFiles;
+    }
+
+    public boolean isArchived() {
+      return mArchived;
+    }
+
+    public long getTotalSize() {
+      return mFiles.stream().mapToLong(AdvinstManifest.Entry::getSize).sum();
+    }
+  }
+}
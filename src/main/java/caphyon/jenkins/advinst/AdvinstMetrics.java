@@ -0,0 +1,111 @@
+package caphyon.jenkins.advinst;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.metrics.api.MetricProvider;
+import jenkins.metrics.api.Metrics;
+import jenkins.model.Jenkins;
+
+/**
+ * Exports the plugin metrics through the Metrics plugin, when it is installed.
+ * The stage durations are histograms, for all nodes and per online node. The
+ * histograms of a node are removed when it goes offline, so cloud agents do not
+ * leave metrics behind. The age and the refresh duration of the release
+ * catalog and the counters of the AIP metadata cache are gauges.
+ */
+final class AdvinstMetrics {
+
+  private static final String kPrefix = "advinst";
+
+  private AdvinstMetrics() {
+  }
+
+  /**
+   * Update the histogram of a stage. Does nothing if the Metrics plugin is not
+   * installed.
+   *
+   * @param nodeName node the stage ran for, or null if not known
+   */
+  static void updateStage(final String stage, final String nodeName, final long millis) {
+    if (isMetricsInstalled()) {
+      // Referenced only here, so the Metrics classes are loaded only when the
+      // plugin is installed.
+      Histograms.update(stage, nodeName, millis);
+    }
+  }
+
+  private static boolean isMetricsInstalled() {
+    final Jenkins jenkins = Jenkins.getInstanceOrNull();
+    return null != jenkins && null != jenkins.getPlugin("metrics");
+  }
+
+  private static String getKey(final String stage) {
+    return stage.toLowerCase(Locale.ENGLISH).replace(' ', '_');
+  }
+
+  private static String getNodePrefix(final String nodeName) {
+    return MetricRegistry.name(kPrefix, "node", nodeName.isEmpty() ? "built-in" : nodeName);
+  }
+
+  private static final class Histograms {
+    static void update(final String stage, final String nodeName, final long millis) {
+      final MetricRegistry registry = Metrics.metricRegistry();
+      registry.histogram(MetricRegistry.name(kPrefix, "stage", getKey(stage), "duration")).update(millis);
+      if (null != nodeName) {
+        registry.histogram(MetricRegistry.name(getNodePrefix(nodeName), "stage", getKey(stage), "duration"))
+            .update(millis);
+      }
+    }
+
+    static void remove(final String nodeName) {
+      final String nodePrefix = getNodePrefix(nodeName) + ".";
+      Metrics.metricRegistry().removeMatching((name, metric) -> name.startsWith(nodePrefix));
+    }
+  }
+
+  /** Removes the histograms of the nodes going offline. */
+  @Extension
+  public static final class NodeListener extends ComputerListener {
+
+    @Override
+    public void onOffline(final Computer c, final OfflineCause cause) {
+      if (isMetricsInstalled()) {
+        Histograms.remove(c.getName());
+      }
+    }
+  }
+
+  /** Gauges of the release catalog and of the AIP metadata cache. */
+  @Extension(optional = true)
+  public static final class Provider extends MetricProvider {
+
+    @Override
+    public MetricSet getMetricSet() {
+      final Map<String, Metric> metrics = new HashMap<String, Metric>();
+      metrics.put(MetricRegistry.name(kPrefix, "catalog", "age"),
+          (Gauge<Long>) () -> AdvinstReleaseCatalog.get().getAgeMillis());
+      metrics.put(MetricRegistry.name(kPrefix, "catalog", "refresh", "duration"),
+          (Gauge<Long>) () -> AdvinstReleaseCatalog.get().getLastRefreshDurationMillis());
+      metrics.put(MetricRegistry.name(kPrefix, "aip_cache", "hits"),
+          (Gauge<Long>) () -> AdvinstAipCache.getInstance().getHits());
+      metrics.put(MetricRegistry.name(kPrefix, "aip_cache", "misses"),
+          (Gauge<Long>) () -> AdvinstAipCache.getInstance().getMisses());
+      metrics.put(MetricRegistry.name(kPrefix, "aip_cache", "evictions"),
+          (Gauge<Long>) () -> AdvinstAipCache.getInstance().getEvictions());
+      metrics.put(MetricRegistry.name(kPrefix, "aip_cache", "size"),
+          (Gauge<Integer>) () -> AdvinstAipCache.getInstance().size());
+      return () -> metrics;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package caphyon.jenkins.advinst;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import hudson.EnvVars;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+
+/**
+ * Limits the Advanced Installer builds running at the same time on a node.
+ * Each build step takes a number of permits equal to its weight, out of the
+ * capacity of the node, and the waiting steps are served in arrival order, so
+ * a heavy step is not overtaken forever by lighter ones.
+ *
+ * The capacity is read from the <code>advancedinstaller.capacity</code>
+ * environment variable of the node. Nodes without it are not limited.
+ */
+final class AdvinstNodeLimiter {
+
+  private static final String kCapacityEnvVar = "advancedinstaller.capacity";
+
+  private static final Map<String, AdvinstNodeLimiter> kLimiters = new ConcurrentHashMap<String, AdvinstNodeLimiter>();
+
+  private final String mNodeName;
+  private final Deque<Object> mQueue = new ArrayDeque<Object>();
+  private int mCapacity;
+  private int mUsed;
+
+  AdvinstNodeLimiter(final String nodeName) {
+    this.mNodeName = nodeName;
+  }
+
+  /** Permits taken by a build step, returned when closed. */
+  interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /**
+   * Take permits for a build step on a node, waiting for them if needed.
+   *
+   * @param weight number of permits, at most the capacity of the node
+   * @return the permits, to be closed when the build ends
+   */
+  static Permit acquire(final Node node, final int weight, final TaskListener listener)
+      throws InterruptedException {
+    final int capacity = getCapacity(node);
+    if (null == node || capacity <= 0) {
+      return () -> {
+      };
+    }
+
+    final AdvinstNodeLimiter limiter = kLimiters.computeIfAbsent(node.getNodeName(), AdvinstNodeLimiter::new);
+    return limiter.acquire(capacity, Math.max(1, Math.min(weight, capacity)), listener);
+  }
+
+  Permit acquire(final int capacity, final int weight, final TaskListener listener)
+      throws InterruptedException {
+    final Object waiter = new Object();
+    final long waitStart = System.nanoTime();
+    synchronized (this) {
+      mCapacity = capacity;
+      mQueue.addLast(waiter);
+      try {
+        if (!canRun(waiter, weight)) {
+          listener.getLogger().println(Messages.MSG_ADVINST_THROTTLE_WAITING(weight, mCapacity,
+              mNodeName.isEmpty() ? "built-in" : mNodeName, mQueue.size(), mUsed));
+          do {
+            wait();
+          } while (!canRun(waiter, weight));
+          listener.getLogger().println(Messages.MSG_ADVINST_THROTTLE_ACQUIRED(
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart)));
+        }
+        mUsed += weight;
+      } finally {
+        mQueue.remove(waiter);
+        // The next waiter may fit in the remaining permits.
+        notifyAll();
+      }
+    }
+    AdvinstTimings.record(AdvinstTimings.kThrottle, waitStart);
+
+    return new Permit() {
+      private boolean mReleased = false;
+
+      @Override
+      public void close() {
+        synchronized (AdvinstNodeLimiter.this) {
+          if (mReleased) {
+            return;
+          }
+          mReleased = true;
+          mUsed -= weight;
+          AdvinstNodeLimiter.this.notifyAll();
+        }
+      }
+    };
+  }
+
+  private boolean canRun(final Object waiter, final int weight) {
+    return mQueue.peekFirst() == waiter && mUsed + weight <= mCapacity;
+  }
+
+  private static int getCapacity(final Node node) {
+    if (null == node) {
+      return 0;
+    }
+    EnvVars envVars = new EnvVars();
+    EnvironmentVariablesNodeProperty env = node.getNodeProperties().get(EnvironmentVariablesNodeProperty.class);
+    if (env != null) {
+      envVars.putAll(env.getEnvVars());
+    }
+    try {
+      return Integer.parseInt(envVars.get(kCapacityEnvVar, "0").trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
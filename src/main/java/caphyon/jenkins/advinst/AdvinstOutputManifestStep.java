@@ -0,0 +1,97 @@
+package caphyon.jenkins.advinst;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.Extension;
+import hudson.model.Run;
+
+/**
+ * Pipeline step returning the output manifest of the run: the files produced
+ * by all its Advanced Installer builds, including the ones that ran in
+ * parallel on other nodes. The result is a map with the keys
+ * <code>files</code>, <code>fileCount</code> and <code>totalSize</code>. Each
+ * file is a map with the keys <code>project</code>, <code>outputFolder</code>,
+ * <code>path</code>, <code>size</code> and <code>sha256</code>.
+ */
+public final class AdvinstOutputManifestStep extends Step {
+
+  @DataBoundConstructor
+  public AdvinstOutputManifestStep() {
+  }
+
+  @Override
+  public StepExecution start(final StepContext context) throws Exception {
+    return new Execution(context);
+  }
+
+  /**
+   * @return the manifest of a run, merged across its build steps
+   */
+  static Map<String, Object> getManifest(final Run<?, ?> run) {
+    List<Map<String, Object>> files = new ArrayList<Map<String, Object>>();
+    long totalSize = 0;
+    final AdvinstManifestAction action = run.getAction(AdvinstManifestAction.class);
+    if (null != action) {
+      for (AdvinstManifestAction.Output output : action.getOutputs()) {
+        for (AdvinstManifest.Entry entry : output.getFiles()) {
+          Map<String, Object> file = new LinkedHashMap<String, Object>();
+          file.put("project", output.getProject());
+          file.put("outputFolder", output.getOutputFolder());
+          file.putAll(AdvinstBuildStepExecution.toMap(entry));
+          files.add(file);
+          totalSize += entry.getSize();
+        }
+      }
+    }
+
+    Map<String, Object> manifest = new LinkedHashMap<String, Object>();
+    manifest.put("files", files);
+    manifest.put("fileCount", files.size());
+    manifest.put("totalSize", totalSize);
+    return manifest;
+  }
+
+  private static final class Execution extends SynchronousStepExecution<Map<String, Object>> {
+    private static final long serialVersionUID = 1L;
+
+    Execution(final StepContext context) {
+      super(context);
+    }
+
+    @Override
+    protected Map<String, Object> run() throws Exception {
+      return getManifest(getContext().get(Run.class));
+    }
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends StepDescriptor {
+
+    @Override
+    public String getFunctionName() {
+      return "advinstOutputManifest";
+    }
+
+    @Override
+    public String getDisplayName() {
+      return Messages.ADVINST_OUTPUT_MANIFEST_STEP();
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      return Collections.singleton(Run.class);
+    }
+  }
+}
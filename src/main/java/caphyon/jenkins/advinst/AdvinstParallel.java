@@ -0,0 +1,51 @@
+package caphyon.jenkins.advinst;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+import jenkins.util.SystemProperties;
+
+/**
+ * Pool running the parallel streams of the file callables: hashing, existence
+ * checks and publishing of files. It is created once per JVM, on the node
+ * running the callables, and shared by all the builds of the node, so parallel
+ * builds do not each start a pool as large as the processor count.
+ */
+final class AdvinstParallel {
+
+  private static final int kParallelism = Math.max(1, SystemProperties.getInteger(
+      AdvinstParallel.class.getName() + ".parallelism", Runtime.getRuntime().availableProcessors()));
+
+  private AdvinstParallel() {
+  }
+
+  /** The pool is only created when a callable first needs it. */
+  private static final class Holder {
+    static final ForkJoinPool kPool = new ForkJoinPool(kParallelism);
+  }
+
+  /**
+   * Run a task that uses a parallel stream in the shared pool, so the stream
+   * is split across the pool threads, and wait for its result. An
+   * {@link UncheckedIOException} thrown by the stream is rethrown as its
+   * {@link IOException} cause. If the waiting thread is interrupted, the task
+   * is cancelled.
+   */
+  static <T> T invoke(final Supplier<T> task) throws IOException, InterruptedException {
+    final ForkJoinTask<T> future = Holder.kPool.submit(task::get);
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof UncheckedIOException ? ((UncheckedIOException) cause).getCause()
+          : new IOException(cause);
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      throw e;
+    }
+  }
+}
@@ -57,6 +57,19 @@ public final class AdvinstParameters {
     return rvalue;
   }
 
+  public int get(final String key, final int defaultValue) {
+    int rvalue = defaultValue;
+    String tmp = this.mProperties.getProperty(key);
+    if (tmp != null) {
+      try {
+        rvalue = Integer.parseInt(tmp);
+      } catch (NumberFormatException e) {
+        // nothing to do
+      }
+    }
+    return rvalue;
+  }
+
   public void set(final String key, final String value) {
     this.mProperties.setProperty(key, value);
   }
@@ -64,4 +77,8 @@ public final class AdvinstParameters {
   public void set(final String key, final boolean value) {
     set(key, String.valueOf(value));
   }
+
+  public void set(final String key, final int value) {
+    set(key, String.valueOf(value));
+  }
 }
@@ -20,6 +20,7 @@ public class AdvinstParametersProcessor {
   private final AdvinstParameters mUiParameters;
   private final FilePath mBuildWorkspace;
   private final FilePath mAipPath;
+  private FilePath mStagingFolder;
 
   public AdvinstParametersProcessor(final AdvinstParameters uiParams, final FilePath aipPath, final FilePath workspace, final EnvVars envVars) {
     mEnvVars = envVars;
@@ -28,10 +29,20 @@ public class AdvinstParametersProcessor {
     mAipPath = aipPath;
   }
 
+  /**
+   * Build the package into a staging folder instead of the output folder. It
+   * is only used when an output folder is configured.
+   *
+   * @param stagingFolder the staging folder, or null to build into the output
+   *                      folder
+   */
+  public final void setStagingFolder(final FilePath stagingFolder) {
+    mStagingFolder = stagingFolder;
+  }
+
   public final List<String> getCommands() throws AdvinstException {
     FilePath outputFolder;
     String buildName;
-    String outputFileName;
 
     // ------------------------------------------------------------------------
     // Compute and validate output folder path. It can be either an absolute path
@@ -39,7 +50,7 @@ public class AdvinstParametersProcessor {
     {
       // Because the output folder may reference environment variables, expand them
       // before computing the absolute path.
-      outputFolder = getExpandedFilePathValue(AdvinstConsts.AdvinstParamAipOutputFolder);
+      outputFolder = getBuildOutputFolder();
     }
 
     // ------------------------------------------------------------------------
@@ -55,6 +66,69 @@ public class AdvinstParametersProcessor {
       }
     }
 
+    return getCommands(buildName, outputFolder);
+  }
+
+  /**
+   * Get the builds to be executed in parallel. The build field holds a list of
+   * build names separated by ';'. If it is empty or contains "All", every build
+   * defined in the AIP is returned.
+   *
+   * @return list of build names
+   */
+  public final List<String> getParallelBuilds() throws AdvinstException {
+    final List<String> aipBuilds = new AdvinstAipReader(mAipPath).getBuilds();
+
+    List<String> buildNames = new ArrayList<String>();
+    StringTokenizer tokenizer = new StringTokenizer(getExpandedStringValue(AdvinstConsts.AdvinstParamAipBuild),
+        AdvinstConsts.AdvinstBuildListSeparator);
+    while (tokenizer.hasMoreTokens()) {
+      final String buildName = tokenizer.nextToken().trim();
+      if (buildName.equals(AdvinstConsts.AdvinstBuildAll)) {
+        return aipBuilds;
+      }
+      if (buildName.isEmpty() || buildNames.contains(buildName)) {
+        continue;
+      }
+      if (!aipBuilds.contains(buildName)) {
+        throw new AdvinstException(Messages.ERR_ADVINST_AIP_BUILD_NOT_FOUND());
+      }
+      buildNames.add(buildName);
+    }
+
+    return buildNames.isEmpty() ? aipBuilds : buildNames;
+  }
+
+  /**
+   * Get the edit commands for the builds returned by
+   * {@link #getParallelBuilds()}, executed before the build command of each build.
+   * When an output folder is configured, each build gets its own subfolder,
+   * named after the build.
+   *
+   * @param buildNames builds to be executed
+   * @return list of commands, without build commands
+   */
+  public final List<String> getParallelEditCommands(final List<String> buildNames) {
+    final FilePath outputFolder = getBuildOutputFolder();
+    List<String> advinstCommands = new ArrayList<String>();
+    for (String buildName : buildNames) {
+      advinstCommands.addAll(getBuildEditCommands(buildName, null == outputFolder ? null
+          : outputFolder.child(buildName.replaceAll("[\\\\/:*?\"<>|]", "_"))));
+    }
+    advinstCommands.addAll(getProjectEditCommands());
+    return advinstCommands;
+  }
+
+  private List<String> getCommands(final String buildName, final FilePath outputFolder) {
+    List<String> advinstCommands = getBuildEditCommands(buildName, outputFolder);
+    advinstCommands.addAll(getProjectEditCommands());
+    advinstCommands.add(String.format("Build -buildslist \"%s\"", buildName));
+    return advinstCommands;
+  }
+
+  private List<String> getBuildEditCommands(final String buildName, final FilePath outputFolder) {
+    String outputFileName;
+
     // ------------------------------------------------------------------------
     // compute and validate the output package name
     {
@@ -74,6 +148,12 @@ public class AdvinstParametersProcessor {
       }
     }
 
+    return advinstCommands;
+  }
+
+  private List<String> getProjectEditCommands() {
+    List<String> advinstCommands = new ArrayList<String>();
+
     if (mUiParameters.get(AdvinstConsts.AdvinstParamAipNoDigSig, false)) {
       advinstCommands.add("ResetSig");
     }
@@ -86,11 +166,33 @@ public class AdvinstParametersProcessor {
       }
     }
 
-    advinstCommands.add(String.format("Build -buildslist \"%s\"", buildName));
-
     return advinstCommands;
   }
 
+  /**
+   * @return the output folder for the result package, or null if the folder
+   *         configured in the AIP is used
+   */
+  public final FilePath getOutputFolder() {
+    return getExpandedFilePathValue(AdvinstConsts.AdvinstParamAipOutputFolder);
+  }
+
+  /**
+   * @return the folder the package is built into: the staging folder if set,
+   *         otherwise the output folder
+   */
+  private FilePath getBuildOutputFolder() {
+    final FilePath outputFolder = getExpandedFilePathValue(AdvinstConsts.AdvinstParamAipOutputFolder);
+    return null != outputFolder && null != mStagingFolder ? mStagingFolder : outputFolder;
+  }
+
+  /**
+   * @return the file holding extra commands, or null if not set
+   */
+  public final FilePath getExtraCommandsFile() {
+    return getExpandedFilePathValue(AdvinstConsts.AdvinstParamExtraCommandsFile);
+  }
+
   private String getExpandedStringValue(final String uiParamName) {
     String expandedValue = Util.replaceMacro(mUiParameters.get(uiParamName, ""), mEnvVars);
     return expandedValue;
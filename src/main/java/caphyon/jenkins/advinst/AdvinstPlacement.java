@@ -0,0 +1,186 @@
+package caphyon.jenkins.advinst;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Places the builds using Advanced Installer on the nodes where the tool is
+ * already deployed. The controller keeps track of the versions deployed on each
+ * online node, from the deployments it runs and from the install manifests
+ * read when a node comes online.
+ *
+ * A freestyle build that would need to deploy the tool is held back from a
+ * cold node while a warm node matching its label has an idle executor. It is
+ * held back for a bounded time only, so it never waits for a warm node for
+ * long.
+ */
+final class AdvinstPlacement {
+
+  private static final Logger LOGGER = Logger.getLogger(AdvinstPlacement.class.getName());
+
+  /** How long a build may be held back from the cold nodes. */
+  private static final long kMaxHoldMillis = TimeUnit.SECONDS
+      .toMillis(SystemProperties.getLong(AdvinstPlacement.class.getName() + ".maxHoldSeconds", 30L));
+
+  private static final Map<String, Set<String>> kWarmNodes = new ConcurrentHashMap<String, Set<String>>();
+
+  private AdvinstPlacement() {
+  }
+
+  /**
+   * Record that a version of an installation is deployed on a node.
+   */
+  static void markWarm(final Node node, final String installName, final String version) {
+    if (null == node) {
+      return;
+    }
+    kWarmNodes.computeIfAbsent(node.getNodeName(), k -> ConcurrentHashMap.newKeySet())
+        .add(getKey(installName, version));
+  }
+
+  /**
+   * @return true if all the installations are deployed on the node, in the
+   *         version their installer deploys there. Installations not deployed
+   *         by an {@link AdvinstInstaller} are always considered deployed.
+   */
+  static boolean isWarm(final Node node, final List<AdvinstInstallation> installations) {
+    final Set<String> warm = kWarmNodes.get(node.getNodeName());
+    for (AdvinstInstallation installation : installations) {
+      final AdvinstInstaller installer = AdvinstInstaller.forNode(installation, node);
+      if (null == installer) {
+        continue;
+      }
+      if (null == warm || !warm.contains(getKey(installation.getName(), installer.getAdvinstVersion()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String getKey(final String installName, final String version) {
+    return installName + "\n" + version;
+  }
+
+  /**
+   * @return the installations used by the Advanced Installer build steps of a
+   *         queued task, empty if the task has none or is not a freestyle job
+   */
+  private static List<AdvinstInstallation> getInstallations(final Queue.Task task) {
+    List<AdvinstInstallation> installations = new ArrayList<AdvinstInstallation>();
+    if (task instanceof Project) {
+      for (AdvinstBuilder builder : ((Project<?, ?>) task).getBuildersList().getAll(AdvinstBuilder.class)) {
+        final AdvinstInstallation installation = builder.getAdvinstInstallation();
+        if (null != installation && !installations.contains(installation)) {
+          installations.add(installation);
+        }
+      }
+    }
+    return installations;
+  }
+
+  /**
+   * Read the install manifests of a node coming online, to find the versions
+   * already deployed there.
+   */
+  private static void scan(final Node node) {
+    final AdvinstDescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AdvinstDescriptorImpl.class);
+    if (null == descriptor) {
+      return;
+    }
+    for (AdvinstInstallation installation : descriptor.getInstallations()) {
+      final AdvinstInstaller installer = AdvinstInstaller.forNode(installation, node);
+      if (null == installer) {
+        continue;
+      }
+      try {
+        final FilePath toolRoot = installer.getToolRoot(installation, node);
+        final AdvinstInstallManifest manifest = toolRoot.act(new AdvinstInstallManifest.Read());
+        if (null != manifest && manifest.getVersion().equals(installer.getAdvinstVersion())) {
+          markWarm(node, installation.getName(), manifest.getVersion());
+        }
+      } catch (Exception e) {
+        LOGGER.log(Level.FINE, "Failed to read the deployment of " + installation.getName() + " on "
+            + node.getNodeName(), e);
+      }
+    }
+  }
+
+  /** Holds the builds back from the cold nodes while a warm node is idle. */
+  @Extension
+  public static final class Dispatcher extends QueueTaskDispatcher {
+
+    @Override
+    public CauseOfBlockage canTake(final Node node, final Queue.BuildableItem item) {
+      if (System.currentTimeMillis() - item.buildableStartMilliseconds > kMaxHoldMillis) {
+        return null;
+      }
+      final List<AdvinstInstallation> installations = getInstallations(item.task);
+      if (installations.isEmpty() || isWarm(node, installations)) {
+        return null;
+      }
+
+      final Label label = item.getAssignedLabel();
+      final Jenkins jenkins = Jenkins.get();
+      final Iterable<Node> candidates = null != label ? label.getNodes() : jenkins.getNodes();
+      for (Node candidate : candidates) {
+        if (candidate == node || !isIdle(candidate) || !isWarm(candidate, installations)) {
+          continue;
+        }
+        if (null == candidate.canTake(item)) {
+          return CauseOfBlockage.fromMessage(Messages._MSG_ADVINST_PLACEMENT_WARM_NODE(candidate.getDisplayName()));
+        }
+      }
+      if (null == label && node != jenkins && isIdle(jenkins) && isWarm(jenkins, installations)
+          && null == jenkins.canTake(item)) {
+        return CauseOfBlockage.fromMessage(Messages._MSG_ADVINST_PLACEMENT_WARM_NODE(jenkins.getDisplayName()));
+      }
+      return null;
+    }
+
+    private static boolean isIdle(final Node node) {
+      final Computer computer = node.toComputer();
+      return null != computer && computer.isOnline() && computer.isAcceptingTasks() && computer.countIdle() > 0;
+    }
+  }
+
+  /** Tracks the deployments of the nodes as they come online and go offline. */
+  @Extension
+  public static final class NodeListener extends ComputerListener {
+
+    @Override
+    public void onOnline(final Computer c, final TaskListener listener) {
+      final Node node = c.getNode();
+      if (null != node) {
+        kWarmNodes.remove(node.getNodeName());
+        Timer.get().submit(() -> scan(node));
+      }
+    }
+
+    @Override
+    public void onOffline(final Computer c, final OfflineCause cause) {
+      kWarmNodes.remove(c.getName());
+    }
+  }
+}
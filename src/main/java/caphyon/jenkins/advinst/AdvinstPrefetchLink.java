@@ -0,0 +1,64 @@
+package caphyon.jenkins.advinst;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+
+/**
+ * Page showing the deployments of Advanced Installer started on the nodes
+ * coming online.
+ */
+@Extension
+public final class AdvinstPrefetchLink extends ManagementLink {
+
+  @Override
+  public String getIconFileName() {
+    return "package.png";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return Messages.MSG_ADVINST_PREFETCH();
+  }
+
+  @Override
+  public String getDescription() {
+    return Messages.MSG_ADVINST_PREFETCH_DESCRIPTION();
+  }
+
+  @Override
+  public String getUrlName() {
+    return "advinstPrefetch";
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.STATUS;
+  }
+
+  public List<AdvinstPrefetcher.Status> getStatuses() {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    return AdvinstPrefetcher.getStatuses();
+  }
+
+  /**
+   * Prefetch on all the online nodes.
+   */
+  @RequirePOST
+  public void doPrefetch(final StaplerResponse rsp) throws IOException {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    for (Computer computer : Jenkins.get().getComputers()) {
+      if (computer.isOnline()) {
+        AdvinstPrefetcher.prefetch(computer);
+      }
+    }
+    rsp.sendRedirect(".");
+  }
+}
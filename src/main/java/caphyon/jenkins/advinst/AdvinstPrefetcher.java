@@ -0,0 +1,185 @@
+package caphyon.jenkins.advinst;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Deploys Advanced Installer on the nodes as soon as they come online, so the
+ * first build on a new node does not pay for the download and the extraction.
+ * Only the installers with prefetching enabled are deployed, on the nodes
+ * matching their label. At most a few nodes are provisioned at the same time.
+ */
+final class AdvinstPrefetcher {
+
+  private static final Logger LOGGER = Logger.getLogger(AdvinstPrefetcher.class.getName());
+
+  /** Number of nodes provisioned at the same time. */
+  private static final int kMaxConcurrentNodes = Math.max(1,
+      SystemProperties.getInteger(AdvinstPrefetcher.class.getName() + ".maxConcurrentNodes", 4));
+
+  private static final ExecutorService kExecutor = Executors.newFixedThreadPool(kMaxConcurrentNodes,
+      new NamingThreadFactory(new DaemonThreadFactory(), AdvinstPrefetcher.class.getSimpleName()));
+
+  private static final ConcurrentMap<String, Status> kStatuses = new ConcurrentHashMap<String, Status>();
+
+  private AdvinstPrefetcher() {
+  }
+
+  /** State of a prefetch. */
+  public enum State {
+    QUEUED, INSTALLING, DONE, FAILED
+  }
+
+  /**
+   * Queue the deployment of the installations with prefetching enabled on a
+   * node. Installations already queued or being deployed on the node are
+   * skipped.
+   */
+  static void prefetch(final Computer computer) {
+    final Node node = computer.getNode();
+    if (null == node || Boolean.TRUE.equals(computer.isUnix())) {
+      return;
+    }
+
+    for (AdvinstInstallation installation : getInstallations()) {
+      final AdvinstInstaller installer = getPrefetchInstaller(installation, node);
+      if (null == installer) {
+        continue;
+      }
+
+      final Status status = new Status(node.getNodeName(), installation.getName(), installer.getAdvinstVersion());
+      // The check and the replacement are atomic, so a node coming online twice
+      // at the same time queues a single deployment.
+      final Status current = kStatuses.compute(status.getKey(),
+          (key, previous) -> null != previous && previous.isPending() ? previous : status);
+      if (current != status) {
+        continue;
+      }
+      kExecutor.submit(() -> install(node, installation, status));
+    }
+  }
+
+  /**
+   * @return the prefetch statuses of the existing nodes, sorted by node
+   */
+  static List<Status> getStatuses() {
+    final Jenkins jenkins = Jenkins.get();
+    kStatuses.values().removeIf(s -> !s.mNodeName.isEmpty() && null == jenkins.getNode(s.mNodeName));
+    List<Status> statuses = new ArrayList<Status>(kStatuses.values());
+    statuses.sort(Comparator.comparing(Status::getNodeName).thenComparing(Status::getInstallName));
+    return statuses;
+  }
+
+  private static void install(final Node node, final AdvinstInstallation installation, final Status status) {
+    status.mState = State.INSTALLING;
+    status.mStartMillis = System.currentTimeMillis();
+    final TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+    try {
+      installation.forNode(node, listener);
+      status.mState = State.DONE;
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Failed to prefetch " + installation.getName() + " on " + status.mNodeName, e);
+      status.mMessage = e.getMessage();
+      status.mState = State.FAILED;
+    } finally {
+      status.mEndMillis = System.currentTimeMillis();
+    }
+  }
+
+  private static AdvinstInstallation[] getInstallations() {
+    final AdvinstDescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AdvinstDescriptorImpl.class);
+    return null == descriptor ? new AdvinstInstallation[0] : descriptor.getInstallations();
+  }
+
+  private static AdvinstInstaller getPrefetchInstaller(final AdvinstInstallation installation, final Node node) {
+    final AdvinstInstaller installer = AdvinstInstaller.forNode(installation, node);
+    return null != installer && installer.getAdvinstPrefetch() ? installer : null;
+  }
+
+  /** Prefetch of an installation on a node. */
+  public static final class Status {
+    private final String mNodeName;
+    private final String mInstallName;
+    private final String mVersion;
+    private volatile State mState = State.QUEUED;
+    private volatile long mStartMillis;
+    private volatile long mEndMillis;
+    private volatile String mMessage;
+
+    Status(final String nodeName, final String installName, final String version) {
+      this.mNodeName = nodeName;
+      this.mInstallName = installName;
+      this.mVersion = version;
+    }
+
+    String getKey() {
+      return mNodeName + "\n" + mInstallName;
+    }
+
+    public String getNodeName() {
+      return mNodeName;
+    }
+
+    public String getInstallName() {
+      return mInstallName;
+    }
+
+    public String getVersion() {
+      return mVersion;
+    }
+
+    public State getState() {
+      return mState;
+    }
+
+    boolean isPending() {
+      return mState == State.QUEUED || mState == State.INSTALLING;
+    }
+
+    /**
+     * @return duration of the deployment in milliseconds, so far if it is still
+     *         running, or 0 if it did not start
+     */
+    public long getDurationMillis() {
+      if (0 == mStartMillis) {
+        return 0;
+      }
+      return (0 == mEndMillis ? System.currentTimeMillis() : mEndMillis) - mStartMillis;
+    }
+
+    /**
+     * @return the failure message, or null
+     */
+    public String getMessage() {
+      return mMessage;
+    }
+  }
+
+  /** Prefetches on the nodes coming online. */
+  @Extension
+  public static final class NodeListener extends ComputerListener {
+
+    @Override
+    public void onOnline(final Computer c, final TaskListener listener) {
+      prefetch(c);
+    }
+  }
+}
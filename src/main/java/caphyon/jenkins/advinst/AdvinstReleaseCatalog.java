@@ -0,0 +1,215 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ini4j.Profile.Section;
+import org.ini4j.Wini;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Catalog of the Advanced Installer releases, read from the updates.ini
+ * published on advancedinstaller.com. The catalog is refreshed in the
+ * background and the last good copy is kept in memory and on disk, so reading
+ * it never waits for the network once it was fetched.
+ *
+ * The refresh period, in hours, can be configured with the
+ * <code>caphyon.jenkins.advinst.AdvinstReleaseCatalog.refreshHours</code>
+ * system property.
+ */
+@Extension
+public final class AdvinstReleaseCatalog extends AsyncPeriodicWork {
+
+  private static final Logger LOGGER = Logger.getLogger(AdvinstReleaseCatalog.class.getName());
+
+  private static final String kUpdatesIniUrl = "https://www.advancedinstaller.com/downloads/updates.ini";
+  private static final String kCacheFile = "caches" + File.separator + "advinst-installer" + File.separator
+      + "updates.ini";
+  private static final DateTimeFormatter kReleaseDateFormat = DateTimeFormatter.ofPattern("dd/M/yyyy");
+  private static final int kTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(30);
+  private static final long kRefreshPeriod = TimeUnit.HOURS
+      .toMillis(SystemProperties.getLong(AdvinstReleaseCatalog.class.getName() + ".refreshHours", 6L));
+
+  private volatile List<Release> mReleases = null;
+  private volatile long mLastUpdate = 0;
+  private volatile long mLastRefreshDuration = -1;
+
+  public AdvinstReleaseCatalog() {
+    super("Advanced Installer release catalog refresh");
+  }
+
+  static AdvinstReleaseCatalog get() {
+    return ExtensionList.lookupSingleton(AdvinstReleaseCatalog.class);
+  }
+
+  /** A release listed in the catalog. */
+  static final class Release {
+    private final String mProductVersion;
+    private final LocalDate mReleaseDate;
+
+    Release(final String productVersion, final LocalDate releaseDate) {
+      this.mProductVersion = productVersion;
+      this.mReleaseDate = releaseDate;
+    }
+
+    String getProductVersion() {
+      return mProductVersion;
+    }
+
+    LocalDate getReleaseDate() {
+      return mReleaseDate;
+    }
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return kRefreshPeriod;
+  }
+
+  @Override
+  public long getInitialDelay() {
+    return 0;
+  }
+
+  @Override
+  protected void execute(final TaskListener listener) {
+    refresh();
+  }
+
+  /**
+   * Get the releases from the catalog, in the order they are listed in
+   * updates.ini. The network is only used if no copy of the catalog was ever
+   * fetched.
+   *
+   * @return list of releases, empty if the catalog is not available
+   */
+  List<Release> getReleases() {
+    List<Release> releases = mReleases;
+    if (null == releases) {
+      synchronized (this) {
+        if (null == mReleases) {
+          loadFromDisk();
+        }
+        if (null == mReleases) {
+          refresh();
+        }
+        releases = mReleases;
+      }
+    }
+    return null == releases ? Collections.<Release>emptyList() : releases;
+  }
+
+  /**
+   * @return milliseconds since the catalog was fetched, or -1 if it never was
+   */
+  public long getAgeMillis() {
+    return 0 == mLastUpdate ? -1 : System.currentTimeMillis() - mLastUpdate;
+  }
+
+  /**
+   * @return duration of the last refresh in milliseconds, or -1 if no refresh
+   *         was performed
+   */
+  public long getLastRefreshDurationMillis() {
+    return mLastRefreshDuration;
+  }
+
+  synchronized void refresh() {
+    final long start = System.nanoTime();
+    try {
+      final String content = download();
+      final List<Release> releases = parse(content);
+      if (releases.isEmpty()) {
+        throw new IOException("No releases found in " + kUpdatesIniUrl);
+      }
+      saveToDisk(content);
+      mReleases = releases;
+      mLastUpdate = System.currentTimeMillis();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to refresh the Advanced Installer release catalog, keeping the last good copy",
+          e);
+    } finally {
+      mLastRefreshDuration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      LOGGER.log(Level.FINE, "Advanced Installer release catalog refresh took {0} ms", mLastRefreshDuration);
+    }
+  }
+
+  private static String download() throws IOException {
+    final URLConnection conn = new URL(kUpdatesIniUrl).openConnection();
+    conn.setUseCaches(false);
+    conn.setConnectTimeout(kTimeoutMillis);
+    conn.setReadTimeout(kTimeoutMillis);
+    try (InputStream is = conn.getInputStream()) {
+      return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  static List<Release> parse(final String content) throws IOException {
+    List<Release> releases = new ArrayList<Release>();
+    Wini updatesIni = new Wini(new StringReader(content));
+    for (Section section : updatesIni.values()) {
+      final String productVersion = section.get("ProductVersion");
+      final String releaseDate = section.get("ReleaseDate");
+      if (null == productVersion || null == releaseDate) {
+        continue;
+      }
+      try {
+        releases.add(new Release(productVersion, LocalDate.parse(releaseDate, kReleaseDateFormat)));
+      } catch (DateTimeParseException e) {
+        LOGGER.log(Level.FINE, "Skipping release with invalid date: " + productVersion, e);
+      }
+    }
+    return Collections.unmodifiableList(releases);
+  }
+
+  private void loadFromDisk() {
+    final File cacheFile = getCacheFile();
+    if (!cacheFile.isFile()) {
+      return;
+    }
+    try {
+      final List<Release> releases = parse(new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8));
+      if (!releases.isEmpty()) {
+        mReleases = releases;
+        mLastUpdate = cacheFile.lastModified();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read the cached Advanced Installer release catalog", e);
+    }
+  }
+
+  private static void saveToDisk(final String content) throws IOException {
+    final File cacheFile = getCacheFile();
+    Files.createDirectories(cacheFile.getParentFile().toPath());
+    final File tempFile = new File(cacheFile.getPath() + ".tmp");
+    Files.write(tempFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static File getCacheFile() {
+    return new File(Jenkins.get().getRootDir(), kCacheFile);
+  }
+}
@@ -0,0 +1,113 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.xml.stream.XMLStreamException;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Index of the source paths referenced by an Advanced Installer project: the
+ * files, the folders and the merge modules it packages, as they are written in
+ * the project.
+ */
+final class AdvinstSourceIndex implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Kind of a referenced source path. */
+  enum Kind {
+    FILE, FOLDER, MERGE_MODULE
+  }
+
+  private final List<Entry> mEntries = new ArrayList<Entry>();
+
+  void add(final Kind kind, final String path) {
+    mEntries.add(new Entry(kind, path));
+  }
+
+  List<Entry> getEntries() {
+    return Collections.unmodifiableList(mEntries);
+  }
+
+  /** A referenced source path. */
+  static final class Entry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Kind mKind;
+    private final String mPath;
+
+    Entry(final Kind kind, final String path) {
+      this.mKind = kind;
+      this.mPath = path;
+    }
+
+    Kind getKind() {
+      return mKind;
+    }
+
+    String getPath() {
+      return mPath;
+    }
+
+    /**
+     * @return true if the path is based on a path variable or a property,
+     *         which can only be resolved by Advanced Installer
+     */
+    boolean isResolvable() {
+      return !mPath.contains("<") && !mPath.contains("[");
+    }
+
+    /**
+     * @param aipFolder folder of the project, relative paths are based on it
+     */
+    File resolve(final File aipFolder) {
+      final File file = new File(mPath);
+      return file.isAbsolute() ? file : new File(aipFolder, mPath);
+    }
+  }
+
+  /**
+   * Checks, on the node that holds the AIP, that the source paths referenced
+   * by the project exist. The paths are checked in parallel. Returns the
+   * missing paths, sorted, or an empty list. Paths based on path variables are
+   * not checked.
+   */
+  static final class Check extends MasterToSlaveFileCallable<List<String>> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public List<String> invoke(final File aipFile, final VirtualChannel channel)
+        throws IOException, InterruptedException {
+      final AdvinstSourceIndex index;
+      try (InputStream aipStream = Files.newInputStream(aipFile.toPath())) {
+        index = AdvinstAipReader.readSourceIndex(aipStream);
+      } catch (XMLStreamException ex) {
+        throw new IOException("Failed to parse " + aipFile + ": " + ex.getMessage(), ex);
+      }
+
+      final File aipFolder = aipFile.getParentFile();
+      return AdvinstParallel.invoke(() -> index.getEntries().parallelStream()
+          .filter(Entry::isResolvable)
+          .filter(e -> !exists(e, aipFolder))
+          .map(e -> e.resolve(aipFolder).getPath())
+          .distinct()
+          .sorted()
+          .collect(Collectors.toList()));
+    }
+
+    private static boolean exists(final Entry entry, final File aipFolder) {
+      final File file = entry.resolve(aipFolder);
+      return entry.getKind() == Kind.FOLDER ? file.exists() : file.isFile();
+    }
+  }
+}
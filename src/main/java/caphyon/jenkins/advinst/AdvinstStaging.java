@@ -0,0 +1,174 @@
+package caphyon.jenkins.advinst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.slaves.WorkspaceList;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Local staging of the package output. The package is built into a folder on
+ * the local disk of the node, then published to the output folder, which may
+ * be a slow network share. Each published file appears in the output folder
+ * through an atomic rename, so it is never seen half-written.
+ *
+ * The staging folders are created in the folder set by the
+ * <code>advancedinstaller.stagingFolder</code> environment variable of the
+ * node, or else in the temporary folder of the workspace.
+ */
+final class AdvinstStaging {
+
+  private static final String kStagingFolderEnvVar = "advancedinstaller.stagingFolder";
+  private static final String kFolderPrefix = "advinst-stage-";
+  private static final String kPartialSuffix = ".advinst-partial";
+
+  /** Files that start the installation, published after all the others. */
+  private static final Pattern kEntryPointPattern = Pattern.compile(".*\\.(msi|exe|msix|msixbundle|appx|appxbundle)");
+
+  private AdvinstStaging() {
+  }
+
+  /**
+   * Create an empty staging folder for an output folder, in the staging folder
+   * of the node or in the temporary folder of the workspace. The staging folder
+   * of an output folder is always the same, so the build commands do not change
+   * from one build to the next.
+   *
+   * @return the staging folder, or null if the workspace has no temporary
+   *         folder
+   */
+  static FilePath create(final Node node, final FilePath workspace, final FilePath outputFolder)
+      throws IOException, InterruptedException {
+    final String stagingRoot = getStagingRoot(node);
+    final FilePath root = null == stagingRoot ? WorkspaceList.tempDir(workspace)
+        : new FilePath(workspace.getChannel(), stagingRoot);
+    if (null == root) {
+      return null;
+    }
+    final FilePath stagingFolder = root
+        .child(kFolderPrefix + Util.getDigestOf(outputFolder.getRemote()).substring(0, 8));
+    stagingFolder.deleteRecursive();
+    stagingFolder.mkdirs();
+    return stagingFolder;
+  }
+
+  private static String getStagingRoot(final Node node) {
+    if (null == node) {
+      return null;
+    }
+    EnvVars envVars = new EnvVars();
+    EnvironmentVariablesNodeProperty env = node.getNodeProperties().get(EnvironmentVariablesNodeProperty.class);
+    if (env != null) {
+      envVars.putAll(env.getEnvVars());
+    }
+    return Util.fixEmptyAndTrim(envVars.get(kStagingFolderEnvVar));
+  }
+
+  /**
+   * @return true if the file starts the installation, so it must only appear
+   *         in the output folder once the files it uses are there
+   */
+  static boolean isEntryPoint(final Path file) {
+    return kEntryPointPattern.matcher(file.getFileName().toString().toLowerCase(Locale.ENGLISH)).matches();
+  }
+
+  /**
+   * Publishes the content of a staging folder to the output folder, then
+   * deletes the staging folder. When the output folder does not exist and is on
+   * the same volume, the whole folder is renamed at once. Otherwise the files
+   * are published in parallel, each one being moved, or copied next to its
+   * target and then renamed over it. The data files are published first and
+   * the package entry points, such as the MSI and EXE files, last, so an
+   * entry point is never seen before its data files. Files of the output
+   * folder that are not in the staging folder are kept. Returns the number of
+   * published files.
+   */
+  static final class Publish extends MasterToSlaveFileCallable<Integer> {
+    private static final long serialVersionUID = 1L;
+
+    private final String mOutputFolder;
+
+    Publish(final FilePath outputFolder) {
+      this.mOutputFolder = outputFolder.getRemote();
+    }
+
+    @Override
+    public Integer invoke(final File stagingFolder, final VirtualChannel channel)
+        throws IOException, InterruptedException {
+      final Path staging = stagingFolder.toPath();
+      final Path output = new File(mOutputFolder).toPath();
+
+      final List<Path> files;
+      try (Stream<Path> paths = Files.walk(staging)) {
+        files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+      }
+
+      if (!Files.exists(output)) {
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        try {
+          Files.move(staging, output, StandardCopyOption.ATOMIC_MOVE);
+          return files.size();
+        } catch (IOException e) {
+          // Another volume, publish the files one by one.
+        }
+      }
+
+      final Map<Boolean, List<Path>> byEntryPoint = files.stream()
+          .collect(Collectors.partitioningBy(AdvinstStaging::isEntryPoint));
+      publishAll(byEntryPoint.get(false), staging, output);
+      publishAll(byEntryPoint.get(true), staging, output);
+
+      new FilePath(stagingFolder).deleteRecursive();
+      return files.size();
+    }
+
+    private static void publishAll(final List<Path> files, final Path staging, final Path output)
+        throws IOException, InterruptedException {
+      AdvinstParallel.invoke(() -> {
+        files.parallelStream().forEach(file -> {
+          try {
+            publish(file, output.resolve(staging.relativize(file).toString()));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        return null;
+      });
+    }
+
+    private static void publish(final Path file, final Path target) throws IOException {
+      Files.createDirectories(target.getParent());
+      try {
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return;
+      } catch (AtomicMoveNotSupportedException e) {
+        // Another volume, copy the file next to its target first.
+      }
+
+      final Path partial = target.resolveSibling(target.getFileName() + kPartialSuffix);
+      try {
+        Files.copy(file, partial, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(partial);
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package caphyon.jenkins.advinst;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stage timings of an Advanced Installer build step. The step makes its
+ * timings current for the thread running it, so the code it calls (tool
+ * installer, AIP reader, tool) records its stages without extra parameters.
+ * Each stage is also exported as a metric.
+ */
+final class AdvinstTimings {
+
+  static final String kToolResolution = "Tool resolution";
+  static final String kReleaseCatalog = "Release catalog check";
+  static final String kDownload = "Download";
+  static final String kExtract = "Extract";
+  static final String kRegistration = "Registration";
+  static final String kAipParsing = "AIP parsing";
+  static final String kPreflight = "Pre-flight check";
+  static final String kAicCreation = "AIC creation";
+  static final String kThrottle = "Node queue";
+  static final String kProcessLaunch = "Process launch";
+  static final String kBuild = "Build";
+  static final String kPublish = "Output publishing";
+  static final String kManifest = "Output hashing";
+  static final String kArchive = "Archiving";
+
+  private static final ThreadLocal<AdvinstTimings> kCurrent = new ThreadLocal<AdvinstTimings>();
+
+  private final String mNodeName;
+  private final long mStart;
+  private final List<AdvinstTimingsAction.Stage> mStages = Collections
+      .synchronizedList(new ArrayList<AdvinstTimingsAction.Stage>());
+
+  private AdvinstTimings(final String nodeName) {
+    this.mNodeName = nodeName;
+    this.mStart = System.nanoTime();
+  }
+
+  /**
+   * Start recording the timings of a build step on the current thread.
+   *
+   * @param nodeName name of the node running the step
+   */
+  static AdvinstTimings begin(final String nodeName) {
+    AdvinstTimings timings = new AdvinstTimings(nodeName);
+    kCurrent.set(timings);
+    return timings;
+  }
+
+  /**
+   * Stop recording the timings on the current thread.
+   */
+  static void end() {
+    kCurrent.remove();
+  }
+
+  /**
+   * Record a stage that started at the given time, as returned by
+   * {@link System#nanoTime()}. The stage is recorded in the step running on the
+   * current thread, if any, and exported as a metric.
+   */
+  static void record(final String stage, final long startNanos) {
+    final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    final AdvinstTimings timings = kCurrent.get();
+    if (null != timings) {
+      timings.mStages.add(new AdvinstTimingsAction.Stage(stage, millis));
+    }
+    AdvinstMetrics.updateStage(stage, null == timings ? null : timings.mNodeName, millis);
+  }
+
+  String getNodeName() {
+    return mNodeName;
+  }
+
+  long getElapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStart);
+  }
+
+  List<AdvinstTimingsAction.Stage> getStages() {
+    synchronized (mStages) {
+      return new ArrayList<AdvinstTimingsAction.Stage>(mStages);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package caphyon.jenkins.advinst;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.Action;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import jenkins.tasks.SimpleBuildStep;
+
+/**
+ * Stage timings of the Advanced Installer build steps of a run, shown on a page
+ * of the run. As the action of the last build it also adds the trend to the
+ * job.
+ */
+public final class AdvinstTimingsAction implements RunAction2, SimpleBuildStep.LastBuildAction {
+
+  private final List<Step> mSteps = new ArrayList<Step>();
+  private transient Run<?, ?> mRun;
+
+  @Override
+  public void onAttached(final Run<?, ?> run) {
+    this.mRun = run;
+  }
+
+  @Override
+  public void onLoad(final Run<?, ?> run) {
+    this.mRun = run;
+  }
+
+  public Run<?, ?> getRun() {
+    return mRun;
+  }
+
+  @Override
+  public Collection<? extends Action> getProjectActions() {
+    return Collections.singletonList(new AdvinstTrendAction(mRun.getParent()));
+  }
+
+  @Override
+  public String getIconFileName() {
+    return "clock.png";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return Messages.MSG_ADVINST_TIMINGS();
+  }
+
+  @Override
+  public String getUrlName() {
+    return "advinstTimings";
+  }
+
+  public List<Step> getSteps() {
+    synchronized (mSteps) {
+      return new ArrayList<Step>(mSteps);
+    }
+  }
+
+  /**
+   * Add the timings of a build step to its run.
+   *
+   * @param run     run of the build step
+   * @param project path of the built project, or null if the step did not
+   *                build a project
+   * @param timings timings of the step
+   */
+  static void add(final Run<?, ?> run, final String project, final AdvinstTimings timings) {
+    final Step step = new Step(timings.getNodeName(), project, timings.getElapsedMillis(), timings.getStages());
+    AdvinstTimingsAction action;
+    synchronized (run) {
+      action = run.getAction(AdvinstTimingsAction.class);
+      if (null == action) {
+        action = new AdvinstTimingsAction();
+        run.addAction(action);
+      }
+    }
+    synchronized (action.mSteps) {
+      action.mSteps.add(step);
+    }
+  }
+
+  /** Timings of a build step. */
+  public static final class Step {
+    private final String mNodeName;
+    private final String mProject;
+    private final long mTotalMillis;
+    private final List<Stage> mStages;
+
+    Step(final String nodeName, final String project, final long totalMillis, final List<Stage> stages) {
+      this.mNodeName = nodeName;
+      this.mProject = project;
+      this.mTotalMillis = totalMillis;
+      this.mStages = Collections.unmodifiableList(new ArrayList<Stage>(stages));
+    }
+
+    public String getNodeName() {
+      return mNodeName;
+    }
+
+    public String getProject() {
+      return mProject;
+    }
+
+    public long getTotalMillis() {
+      return mTotalMillis;
+    }
+
+    public List<Stage> getStages() {
+      return mStages;
+    }
+  }
+
+  /** Duration of a stage of a build step. */
+  public static final class Stage {
+    private final String mName;
+    private final long mMillis;
+
+    Stage(final String name, final long millis) {
+      this.mName = name;
+      this.mMillis = millis;
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    public long getMillis() {
+      return mMillis;
+    }
+  }
+}
@@ -23,24 +23,88 @@
  */
 package caphyon.jenkins.advinst;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
+import hudson.console.LineTransformationOutputStream;
 import hudson.model.TaskListener;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
 
 public final class AdvinstTool {
   private final String mAdvinstComPath;
+  private final AdvinstWorkerConfig mWorkerConfig;
 
   public AdvinstTool(final String advinstComPath) {
+    this(advinstComPath, null);
+  }
+
+  /**
+   * @param advinstComPath path of AdvancedInstaller.com
+   * @param workerConfig   configuration of the persistent worker used to run
+   *                       the commands, or null to start a new process
+   */
+  AdvinstTool(final String advinstComPath, final AdvinstWorkerConfig workerConfig) {
     this.mAdvinstComPath = advinstComPath;
+    this.mWorkerConfig = workerConfig;
   }
 
   public boolean executeCommands(final List<String> commands, final FilePath aipPath, final FilePath workspace,
       final Launcher launcher, final TaskListener listener, final EnvVars env) throws AdvinstException {
+    return executeCommands(commands, null, aipPath, workspace, launcher, listener, env, null);
+  }
+
+  /**
+   * @param commandsFile file with extra commands, inserted before the build
+   *                     command, or null
+   * @param fullLog      file receiving the complete Advanced Installer output,
+   *                     GZIP compressed. When set, only a condensed output is
+   *                     sent to the build log. It must be on the node running
+   *                     the build.
+   */
+  boolean executeCommands(final List<String> commands, final AdvinstCommandsFile commandsFile,
+      final FilePath aipPath, final FilePath workspace, final Launcher launcher, final TaskListener listener,
+      final EnvVars env, final FilePath fullLog) throws AdvinstException {
     FilePath aicFilePath = null;
     try {
       if (launcher.isUnix()) {
@@ -52,15 +116,38 @@ public final class AdvinstTool {
         return false;
       }
 
-      aicFilePath = createAicFile(pwd, commands);
+      final long aicStart = System.nanoTime();
+      aicFilePath = createAicFile(pwd, commands, commandsFile);
       if (null == aicFilePath) {
         throw new AdvinstException(Messages.ERR_ADVINST_FAILED_AIC());
       }
+      AdvinstTimings.record(AdvinstTimings.kAicCreation, aicStart);
+
+      final VirtualChannel channel = launcher.getChannel();
+      final String fullLogPath = null == fullLog ? null : fullLog.getRemote();
+      final long buildStart = System.nanoTime();
+      if (null != mWorkerConfig && null != channel) {
+        final Integer result = executeInWorker(channel, aipPath, aicFilePath, env, pwd, listener, fullLogPath);
+        if (null != result) {
+          AdvinstTimings.record(AdvinstTimings.kBuild, buildStart);
+          return 0 == result;
+        }
+      }
 
       ArgumentListBuilder cmdExecArgs = new ArgumentListBuilder();
       cmdExecArgs.add(mAdvinstComPath, "/execute", aipPath.getRemote(), aicFilePath.getRemote());
 
-      int result = launcher.launch().cmds(cmdExecArgs).envs(env).stdout(listener).pwd(pwd).join();
+      if (null != fullLogPath && null != channel) {
+        final int result = executeCondensed(channel, cmdExecArgs, env, pwd, listener, fullLogPath);
+        AdvinstTimings.record(AdvinstTimings.kBuild, buildStart);
+        return 0 == result;
+      }
+
+      Proc proc = launcher.launch().cmds(cmdExecArgs).envs(env).stdout(listener).pwd(pwd).start();
+      AdvinstTimings.record(AdvinstTimings.kProcessLaunch, buildStart);
+      final long joinStart = System.nanoTime();
+      int result = proc.join();
+      AdvinstTimings.record(AdvinstTimings.kBuild, joinStart);
       return 0 == result;
 
     } catch (IOException e) {
@@ -80,16 +167,415 @@ public final class AdvinstTool {
     }
   }
 
-  private static FilePath createAicFile(final FilePath buildWorkspace, final List<String> aCommands)
+  /**
+   * Run the build in a worker of the node, with the build environment and the
+   * workspace as working directory.
+   *
+   * @return the exit code, or null if no worker is available and the build
+   *         must run in a new process
+   */
+  private Integer executeInWorker(final VirtualChannel channel, final FilePath aipPath, final FilePath aicFilePath,
+      final EnvVars env, final FilePath pwd, final TaskListener listener, final String fullLogPath)
+      throws IOException, InterruptedException {
+    final String jobId = UUID.randomUUID().toString();
+    try {
+      return channel.call(new AdvinstWorkerPool.Execute(mWorkerConfig, jobId, mAdvinstComPath, aipPath.getRemote(),
+          aicFilePath.getRemote(), env, pwd.getRemote(), new RemoteOutputStream(listener.getLogger()),
+          fullLogPath));
+    } catch (AdvinstWorkerPool.WorkerUnavailableException e) {
+      listener.getLogger().println(Messages.MSG_ADVINST_WORKER_UNAVAILABLE(e.getMessage()));
+      return null;
+    } catch (InterruptedException e) {
+      // The build was aborted, stop the job running in the worker.
+      channel.call(new AdvinstWorkerPool.Abort(jobId));
+      throw e;
+    }
+  }
+
+  /**
+   * Run Advanced Installer from a callable on the node, so its output is
+   * condensed there and only the summary crosses the channel.
+   */
+  private static int executeCondensed(final VirtualChannel channel, final ArgumentListBuilder cmdExecArgs,
+      final EnvVars env, final FilePath pwd, final TaskListener listener, final String fullLogPath)
+      throws IOException, InterruptedException {
+    final String jobId = UUID.randomUUID().toString();
+    try {
+      return channel.call(new CondensedLaunch(jobId, cmdExecArgs, env, pwd.getRemote(),
+          new RemoteOutputStream(listener.getLogger()), fullLogPath));
+    } catch (InterruptedException e) {
+      // The build was aborted, stop the process running on the node.
+      channel.call(new AbortCondensedLaunch(jobId));
+      throw e;
+    }
+  }
+
+  /**
+   * Execute several builds of the same project as parallel processes. Every
+   * build runs against the original AIP with its own AIC file, holding the edit
+   * commands followed by the build command of that build, so the project name
+   * and its cache and setup files folders stay the same as for a single build.
+   * The edits are never saved, so the project in the workspace is not modified
+   * and the builds do not share a project file being written. When a build
+   * fails the other running builds are stopped and the pending ones are
+   * skipped.
+   *
+   * @param editCommands      edit commands for all the builds, without the
+   *                          build commands
+   * @param buildNames        builds to be executed
+   * @param maxParallelBuilds maximum number of builds running at the same time
+   * @return true if all builds succeeded
+   */
+  public boolean executeParallelBuilds(final List<String> editCommands, final List<String> buildNames,
+      final int maxParallelBuilds, final FilePath aipPath, final FilePath workspace, final Launcher launcher,
+      final TaskListener listener, final EnvVars env) throws AdvinstException {
+    return executeParallelBuilds(editCommands, buildNames, null, maxParallelBuilds, aipPath, workspace, launcher,
+        listener, env);
+  }
+
+  /**
+   * @param commandsFile file with extra commands, executed after the edit
+   *                     commands, or null
+   */
+  boolean executeParallelBuilds(final List<String> editCommands, final List<String> buildNames,
+      final AdvinstCommandsFile commandsFile, final int maxParallelBuilds, final FilePath aipPath,
+      final FilePath workspace, final Launcher launcher, final TaskListener listener, final EnvVars env)
+      throws AdvinstException {
+    if (launcher.isUnix()) {
+      throw new AdvinstException(Messages.ERR_ADVINST_UNSUPPORTED_OS());
+    }
+
+    if (null == workspace || buildNames.isEmpty()) {
+      return false;
+    }
+
+    return executeBuilds(editCommands, buildNames, commandsFile, maxParallelBuilds, aipPath, workspace, launcher,
+        listener, env);
+  }
+
+  private boolean executeBuilds(final List<String> editCommands, final List<String> buildNames,
+      final AdvinstCommandsFile commandsFile, final int maxParallelBuilds, final FilePath aipPath,
+      final FilePath workspace, final Launcher launcher, final TaskListener listener, final EnvVars env)
+      throws AdvinstException {
+    final Set<Proc> runningBuilds = ConcurrentHashMap.newKeySet();
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    final int poolSize = Math.max(1, Math.min(maxParallelBuilds, buildNames.size()));
+    final long buildStart = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(poolSize,
+        new NamingThreadFactory(Executors.defaultThreadFactory(), "AdvinstParallelBuild"));
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (String buildName : buildNames) {
+        results.add(executor.submit(() -> executeBuild(editCommands, buildName, commandsFile, aipPath, workspace,
+            launcher, listener, env, runningBuilds, failed)));
+      }
+
+      boolean success = true;
+      for (Future<Boolean> result : results) {
+        success &= result.get();
+      }
+      AdvinstTimings.record(AdvinstTimings.kBuild, buildStart);
+      return success;
+    } catch (ExecutionException e) {
+      stopBuilds(runningBuilds, failed);
+      throw new AdvinstException(e.getCause());
+    } catch (InterruptedException e) {
+      stopBuilds(runningBuilds, failed);
+      throw new AdvinstException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private boolean executeBuild(final List<String> editCommands, final String buildName,
+      final AdvinstCommandsFile commandsFile, final FilePath aipPath, final FilePath workspace,
+      final Launcher launcher, final TaskListener listener, final EnvVars env, final Set<Proc> runningBuilds,
+      final AtomicBoolean failed) throws IOException, InterruptedException {
+    if (failed.get()) {
+      listener.getLogger().println(Messages.MSG_ADVINST_PARALLEL_BUILD_SKIPPED(buildName));
+      return false;
+    }
+
+    final List<String> commands = new ArrayList<String>(editCommands);
+    commands.add(String.format("Build -buildslist \"%s\"", buildName));
+    final FilePath aicFile = createAicFile(workspace, commands, commandsFile);
+    ArgumentListBuilder cmdExecArgs = new ArgumentListBuilder();
+    cmdExecArgs.add(mAdvinstComPath, "/execute", aipPath.getRemote(), aicFile.getRemote());
+
+    listener.getLogger().println(Messages.MSG_ADVINST_PARALLEL_BUILD_START(buildName));
+    try (OutputStream buildLog = new BuildLogOutputStream(listener.getLogger(), buildName)) {
+      Proc proc = launcher.launch().cmds(cmdExecArgs).envs(env).stdout(buildLog).pwd(workspace).start();
+      runningBuilds.add(proc);
+      final int result;
+      try {
+        if (failed.get()) {
+          proc.kill();
+        }
+        result = proc.join();
+      } finally {
+        runningBuilds.remove(proc);
+      }
+
+      if (0 != result) {
+        if (failed.compareAndSet(false, true)) {
+          listener.error(Messages.ERR_ADVINST_PARALLEL_BUILD_FAILED(buildName, result));
+          stopBuilds(runningBuilds, failed);
+        }
+        return false;
+      }
+    } finally {
+      try {
+        aicFile.delete();
+      } catch (IOException e) {
+        // A leftover AIC file must not hide the result of the build.
+        listener.getLogger().println(Messages.MSG_ADVINST_AIC_NOT_DELETED(aicFile.getRemote(), e.getMessage()));
+      }
+    }
+    return true;
+  }
+
+  private static void stopBuilds(final Set<Proc> runningBuilds, final AtomicBoolean failed) {
+    failed.set(true);
+    for (Proc proc : runningBuilds) {
+      try {
+        proc.kill();
+      } catch (IOException e) {
+        // the process may have already finished
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  static FilePath createAicFile(final FilePath buildWorkspace, final Iterable<String> aCommands)
+      throws IOException, InterruptedException {
+    return createAicFile(buildWorkspace, aCommands, null, Collections.<String>emptyList());
+  }
+
+  /**
+   * Create the AIC file of a build. The commands of the commands file are
+   * inserted before the last command, the build command.
+   *
+   * @param commandsFile file with extra commands, or null
+   */
+  static FilePath createAicFile(final FilePath buildWorkspace, final List<String> aCommands,
+      final AdvinstCommandsFile commandsFile) throws IOException, InterruptedException {
+    if (null == commandsFile || aCommands.isEmpty()) {
+      return createAicFile(buildWorkspace, aCommands, commandsFile, Collections.<String>emptyList());
+    }
+    final int last = aCommands.size() - 1;
+    return createAicFile(buildWorkspace, aCommands.subList(0, last), commandsFile,
+        new ArrayList<String>(aCommands.subList(last, aCommands.size())));
+  }
+
+  /**
+   * Create the AIC file in the workspace. The commands are streamed to the file
+   * one at a time, encoded as UTF-16 with a BOM, so the content is never held in
+   * memory. On a remote workspace the commands are sent to the node as UTF-8,
+   * which takes half the bytes of UTF-16 for most commands, and the node
+   * encodes them to the file, appending the commands of the commands file and
+   * the trailing commands. On a local workspace the file is written directly.
+   */
+  private static FilePath createAicFile(final FilePath buildWorkspace, final Iterable<String> aCommands,
+      final AdvinstCommandsFile commandsFile, final List<String> trailingCommands)
       throws IOException, InterruptedException {
     FilePath aicFile = buildWorkspace.createTempFile("aic", "aic");
-    StringBuffer fileContent = new StringBuffer(AdvinstConsts.AdvinstAicHeader + "\r\n");
-    for (String command : aCommands) {
-      fileContent.append(command);
-      fileContent.append("\r\n");
+    if (aicFile.isRemote()) {
+      final Iterator<String> lines = Stream.concat(Stream.of(AdvinstConsts.AdvinstAicHeader),
+          StreamSupport.stream(aCommands.spliterator(), false)).iterator();
+      final InputStream commands = new SequenceInputStream(new Enumeration<InputStream>() {
+        @Override
+        public boolean hasMoreElements() {
+          return lines.hasNext();
+        }
+
+        @Override
+        public InputStream nextElement() {
+          return new ByteArrayInputStream((lines.next() + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+      });
+      aicFile.act(new WriteAicFile(new RemoteInputStream(commands, RemoteInputStream.Flag.GREEDY), commandsFile,
+          trailingCommands));
+      return aicFile;
+    }
+
+    // The UTF-16 encoder writes the byte order mark first.
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(aicFile.write(), StandardCharsets.UTF_16))) {
+      writer.write(AdvinstConsts.AdvinstAicHeader);
+      writer.write("\r\n");
+      for (String command : aCommands) {
+        writer.write(command);
+        writer.write("\r\n");
+      }
+      if (null == commandsFile) {
+        writeCommands(writer, trailingCommands);
+      }
     }
 
-    aicFile.write(fileContent.toString(), "UTF-16");
+    if (null != commandsFile) {
+      aicFile.act(new AppendAicFile(commandsFile, trailingCommands));
+    }
     return aicFile;
   }
+
+  private static void writeCommands(final Writer writer, final List<String> commands) throws IOException {
+    for (String command : commands) {
+      writer.write(command);
+      writer.write("\r\n");
+    }
+  }
+
+  /**
+   * Writes an AIC file from the UTF-8 commands received from the controller,
+   * followed by the commands of the commands file and the trailing commands.
+   * Runs on the node that holds the workspace, so only the UTF-8 commands
+   * cross the channel.
+   */
+  static final class WriteAicFile extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+
+    private final InputStream mCommands;
+    private final AdvinstCommandsFile mCommandsFile;
+    private final List<String> mTrailingCommands;
+
+    WriteAicFile(final InputStream commands, final AdvinstCommandsFile commandsFile,
+        final List<String> trailingCommands) {
+      this.mCommands = commands;
+      this.mCommandsFile = commandsFile;
+      this.mTrailingCommands = trailingCommands;
+    }
+
+    @Override
+    public Void invoke(final File aicFile, final VirtualChannel channel) throws IOException {
+      // The UTF-16 encoder writes the byte order mark first.
+      try (Reader reader = new InputStreamReader(mCommands, StandardCharsets.UTF_8);
+          Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(aicFile.toPath()),
+              StandardCharsets.UTF_16))) {
+        final char[] buffer = new char[8192];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+          writer.write(buffer, 0, count);
+        }
+        if (null != mCommandsFile) {
+          mCommandsFile.copyTo(writer);
+        }
+        writeCommands(writer, mTrailingCommands);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Appends the commands of a commands file to an AIC file, followed by the
+   * trailing commands. Runs on the node that holds both files.
+   */
+  private static final class AppendAicFile extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+
+    private final AdvinstCommandsFile mCommandsFile;
+    private final List<String> mTrailingCommands;
+
+    AppendAicFile(final AdvinstCommandsFile commandsFile, final List<String> trailingCommands) {
+      this.mCommandsFile = commandsFile;
+      this.mTrailingCommands = trailingCommands;
+    }
+
+    @Override
+    public Void invoke(final File aicFile, final VirtualChannel channel) throws IOException {
+      // The file already starts with the byte order mark of a big-endian UTF-16
+      // encoding, so the rest is appended without one.
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+          Files.newOutputStream(aicFile.toPath(), StandardOpenOption.APPEND), StandardCharsets.UTF_16BE))) {
+        mCommandsFile.copyTo(writer);
+        writeCommands(writer, mTrailingCommands);
+      }
+      return null;
+    }
+  }
+
+  /** Processes started by {@link CondensedLaunch} on this node, by job id. */
+  private static final Map<String, Proc> kCondensedProcs = new ConcurrentHashMap<String, Proc>();
+
+  /** Launches Advanced Installer on the node and condenses its output. */
+  private static final class CondensedLaunch extends MasterToSlaveCallable<Integer, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    private final String mJobId;
+    private final ArgumentListBuilder mCmdExecArgs;
+    private final EnvVars mEnv;
+    private final String mPwd;
+    private final OutputStream mLog;
+    private final String mFullLogPath;
+
+    CondensedLaunch(final String jobId, final ArgumentListBuilder cmdExecArgs, final EnvVars env, final String pwd,
+        final OutputStream log, final String fullLogPath) {
+      this.mJobId = jobId;
+      this.mCmdExecArgs = cmdExecArgs;
+      this.mEnv = env;
+      this.mPwd = pwd;
+      this.mLog = log;
+      this.mFullLogPath = fullLogPath;
+    }
+
+    @Override
+    public Integer call() throws IOException {
+      final TaskListener listener = new StreamTaskListener(mLog, Charset.defaultCharset());
+      try (OutputStream log = AdvinstLogFilter.create(mLog, mFullLogPath, Charset.defaultCharset())) {
+        Proc proc = new Launcher.LocalLauncher(listener).launch().cmds(mCmdExecArgs).envs(mEnv).stdout(log)
+            .pwd(mPwd).start();
+        kCondensedProcs.put(mJobId, proc);
+        try {
+          return proc.join();
+        } finally {
+          kCondensedProcs.remove(mJobId);
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /** Kills a process started by {@link CondensedLaunch}. */
+  private static final class AbortCondensedLaunch extends MasterToSlaveCallable<Void, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    private final String mJobId;
+
+    AbortCondensedLaunch(final String jobId) {
+      this.mJobId = jobId;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      final Proc proc = kCondensedProcs.remove(mJobId);
+      if (null != proc) {
+        try {
+          proc.kill();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Prefixes each line of a build output with the build name. */
+  private static final class BuildLogOutputStream extends LineTransformationOutputStream {
+    private final PrintStream mLogger;
+    private final byte[] mPrefix;
+
+    BuildLogOutputStream(final PrintStream logger, final String buildName) {
+      this.mLogger = logger;
+      this.mPrefix = ("[" + buildName + "] ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void eol(final byte[] b, final int len) throws IOException {
+      // Write the whole line at once so lines from parallel builds do not mix.
+      byte[] line = new byte[mPrefix.length + len];
+      System.arraycopy(mPrefix, 0, line, 0, mPrefix.length);
+      System.arraycopy(b, 0, line, mPrefix.length, len);
+      mLogger.write(line, 0, line.length);
+    }
+  }
 }
@@ -0,0 +1,114 @@
+package caphyon.jenkins.advinst;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+
+/**
+ * Per node memoization of the resolved Advanced Installer executable paths, so
+ * repeated build steps on the same node only need to check that the executable
+ * still exists instead of resolving the tool again. The version of each
+ * resolved executable is kept as well, so it is not read again for every
+ * build. The entries of a node are
+ * dropped when it goes offline or comes back online, and all entries are
+ * dropped when the tool configuration is saved.
+ */
+final class AdvinstToolCache {
+
+  private static final Map<String, Map<String, String>> kNodeEntries = new ConcurrentHashMap<String, Map<String, String>>();
+
+  /** Versions of the executables, by node name and executable path. */
+  private static final Map<String, Map<String, String>> kNodeVersions = new ConcurrentHashMap<String, Map<String, String>>();
+
+  private AdvinstToolCache() {
+  }
+
+  /**
+   * @param node        node the tool is resolved for, the one holding the
+   *                    workspace of the build
+   * @param installName name of the Advanced Installer installation
+   * @param home        configured home of the installation, expanded for the
+   *                    build environment
+   * @return the cached executable path or null if not cached
+   */
+  static String get(final Node node, final String installName, final String home) {
+    if (null == node) {
+      return null;
+    }
+    final Map<String, String> entries = kNodeEntries.get(node.getNodeName());
+    return null == entries ? null : entries.get(getKey(installName, home));
+  }
+
+  static void put(final Node node, final String installName, final String home, final String advinstComPath) {
+    if (null == node) {
+      return;
+    }
+    kNodeEntries.computeIfAbsent(node.getNodeName(), k -> new ConcurrentHashMap<String, String>())
+        .put(getKey(installName, home), advinstComPath);
+  }
+
+  static void remove(final Node node, final String installName, final String home) {
+    if (null == node) {
+      return;
+    }
+    final Map<String, String> entries = kNodeEntries.get(node.getNodeName());
+    if (null != entries) {
+      entries.remove(getKey(installName, home));
+    }
+  }
+
+  /**
+   * @return the cached version of an executable, or null if not cached
+   */
+  static String getVersion(final Node node, final String advinstComPath) {
+    if (null == node) {
+      return null;
+    }
+    final Map<String, String> versions = kNodeVersions.get(node.getNodeName());
+    return null == versions ? null : versions.get(advinstComPath);
+  }
+
+  static void putVersion(final Node node, final String advinstComPath, final String version) {
+    if (null == node || null == version) {
+      return;
+    }
+    kNodeVersions.computeIfAbsent(node.getNodeName(), k -> new ConcurrentHashMap<String, String>())
+        .put(advinstComPath, version);
+  }
+
+  static void invalidate(final String nodeName) {
+    kNodeEntries.remove(nodeName);
+    kNodeVersions.remove(nodeName);
+  }
+
+  static void clear() {
+    kNodeEntries.clear();
+    kNodeVersions.clear();
+  }
+
+  private static String getKey(final String installName, final String home) {
+    return Util.fixNull(installName) + "\n" + Util.fixNull(home);
+  }
+
+  /** Drops the entries of a node when its connection changes. */
+  @Extension
+  public static final class NodeListener extends ComputerListener {
+
+    @Override
+    public void onOnline(final Computer c, final TaskListener listener) {
+      invalidate(c.getName());
+    }
+
+    @Override
+    public void onOffline(final Computer c, final OfflineCause cause) {
+      invalidate(c.getName());
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package caphyon.jenkins.advinst;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import hudson.model.Job;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+
+/**
+ * Per job time series of the Advanced Installer build steps. The entries are
+ * appended to a compact text file in the job folder, one line per step, so the
+ * trend never needs to load the builds. Only the latest entries are kept: when
+ * the file holds twice the limit, it is rewritten with the latest ones.
+ */
+final class AdvinstTrend {
+
+  private static final Logger LOGGER = Logger.getLogger(AdvinstTrend.class.getName());
+
+  static final String kFileName = "advinst-trend.csv";
+
+  /** Number of previous entries the duration of a new entry is compared to. */
+  private static final int kBaselineEntries = 10;
+
+  /** Number of entries kept in the trend of a job. */
+  private static final int kMaxEntries = Math.max(kBaselineEntries,
+      SystemProperties.getInteger(AdvinstTrend.class.getName() + ".maxEntries", 500));
+
+  /** Locks of the trend files, so appends to different jobs do not wait. */
+  private static final ConcurrentMap<String, Object> kFileLocks = new ConcurrentHashMap<String, Object>();
+
+  private AdvinstTrend() {
+  }
+
+  /**
+   * Append an entry to the trend of a job. The entry is flagged if its duration
+   * exceeds the median duration of the previous entries by more than the given
+   * threshold.
+   *
+   * @param thresholdPercent duration increase, in percents, above which the
+   *                         entry is flagged, or 0 to never flag entries
+   * @return the appended entry
+   */
+  static Entry append(final Job<?, ?> job, final int buildNumber, final long timestamp, final long durationMillis,
+      final long packageSize, final int commandCount, final String toolVersion, final int thresholdPercent)
+      throws IOException {
+    return append(getFile(job), buildNumber, timestamp, durationMillis, packageSize, commandCount, toolVersion,
+        thresholdPercent);
+  }
+
+  /**
+   * @param file trend file
+   */
+  static Entry append(final File file, final int buildNumber, final long timestamp, final long durationMillis,
+      final long packageSize, final int commandCount, final String toolVersion, final int thresholdPercent)
+      throws IOException {
+    synchronized (getLock(file)) {
+      // The file holds at most twice the limit, so reading it stays cheap.
+      final List<Entry> entries = read(file, 2 * kMaxEntries);
+      boolean flagged = false;
+      if (thresholdPercent > 0) {
+        final long baseline = getMedianDuration(
+            entries.subList(Math.max(0, entries.size() - kBaselineEntries), entries.size()));
+        flagged = baseline > 0 && durationMillis * 100 > baseline * (100 + thresholdPercent);
+      }
+
+      final Entry entry = new Entry(buildNumber, timestamp, durationMillis, packageSize, commandCount,
+          toolVersion, flagged);
+      if (entries.size() < 2 * kMaxEntries) {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+          writer.write(entry.toLine());
+          writer.write('\n');
+        }
+      } else {
+        final List<Entry> kept = new ArrayList<Entry>(entries.subList(entries.size() - kMaxEntries + 1,
+            entries.size()));
+        kept.add(entry);
+        rewrite(file, kept);
+      }
+      return entry;
+    }
+  }
+
+  /** Replace the content of the file, so readers never see a partial file. */
+  private static void rewrite(final File file, final List<Entry> entries) throws IOException {
+    final File tempFile = new File(file.getPath() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+      for (Entry entry : entries) {
+        writer.write(entry.toLine());
+        writer.write('\n');
+      }
+    }
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @param maxEntries maximum number of entries to return
+   * @return the latest entries of the job trend, oldest first
+   */
+  static List<Entry> read(final Job<?, ?> job, final int maxEntries) {
+    final File file = getFile(job);
+    synchronized (getLock(file)) {
+      return read(file, maxEntries);
+    }
+  }
+
+  static List<Entry> read(final File file, final int maxEntries) {
+    Deque<Entry> entries = new ArrayDeque<Entry>();
+    if (!file.isFile()) {
+      return new ArrayList<Entry>(entries);
+    }
+
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final Entry entry = Entry.fromLine(line);
+        if (null == entry) {
+          continue;
+        }
+        entries.addLast(entry);
+        if (entries.size() > maxEntries) {
+          entries.removeFirst();
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+    }
+    return new ArrayList<Entry>(entries);
+  }
+
+  private static long getMedianDuration(final List<Entry> entries) {
+    if (entries.isEmpty()) {
+      return 0;
+    }
+    final long[] durations = entries.stream().mapToLong(Entry::getDurationMillis).sorted().toArray();
+    return durations[durations.length / 2];
+  }
+
+  private static File getFile(final Job<?, ?> job) {
+    return new File(job.getRootDir(), kFileName);
+  }
+
+  private static Object getLock(final File file) {
+    return kFileLocks.computeIfAbsent(file.getPath(), k -> new Object());
+  }
+
+  /** An entry of the trend. */
+  public static final class Entry {
+    private final int mBuildNumber;
+    private final long mTimestamp;
+    private final long mDurationMillis;
+    private final long mPackageSize;
+    private final int mCommandCount;
+    private final String mToolVersion;
+    private final boolean mFlagged;
+
+    Entry(final int buildNumber, final long timestamp, final long durationMillis, final long packageSize,
+        final int commandCount, final String toolVersion, final boolean flagged) {
+      this.mBuildNumber = buildNumber;
+      this.mTimestamp = timestamp;
+      this.mDurationMillis = durationMillis;
+      this.mPackageSize = packageSize;
+      this.mCommandCount = commandCount;
+      this.mToolVersion = null == toolVersion ? "" : toolVersion.replace(',', ' ');
+      this.mFlagged = flagged;
+    }
+
+    public int getBuildNumber() {
+      return mBuildNumber;
+    }
+
+    public long getTimestamp() {
+      return mTimestamp;
+    }
+
+    public Date getDate() {
+      return new Date(mTimestamp);
+    }
+
+    public long getDurationMillis() {
+      return mDurationMillis;
+    }
+
+    /**
+     * @return size of the output folder in bytes, or -1 if not known
+     */
+    public long getPackageSize() {
+      return mPackageSize;
+    }
+
+    public int getCommandCount() {
+      return mCommandCount;
+    }
+
+    public String getToolVersion() {
+      return mToolVersion;
+    }
+
+    /**
+     * @return true if the duration exceeded the threshold
+     */
+    public boolean isFlagged() {
+      return mFlagged;
+    }
+
+    String toLine() {
+      return mBuildNumber + "," + mTimestamp + "," + mDurationMillis + "," + mPackageSize + "," + mCommandCount
+          + "," + mToolVersion + "," + (mFlagged ? "1" : "0");
+    }
+
+    static Entry fromLine(final String line) {
+      final String[] fields = line.split(",", -1);
+      if (fields.length < 7) {
+        return null;
+      }
+      try {
+        return new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+            Long.parseLong(fields[3]), Integer.parseInt(fields[4]), fields[5], "1".equals(fields[6]));
+      } catch (NumberFormatException e) {
+        // a line partially written by a crash
+        return null;
+      }
+    }
+  }
+
+  /** Computes the total size of the files in a folder, or -1 if it is missing. */
+  static final class FolderSize extends MasterToSlaveFileCallable<Long> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Long invoke(final File folder, final VirtualChannel channel) throws IOException {
+      if (!folder.isDirectory()) {
+        return -1L;
+      }
+      try (Stream<Path> files = Files.walk(folder.toPath())) {
+        return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+      }
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package caphyon.jenkins.advinst;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import hudson.model.Action;
+import hudson.model.Job;
+
+/**
+ * Trend of the Advanced Installer build steps of a job: duration, package size,
+ * number of commands and tool version of each step.
+ */
+public final class AdvinstTrendAction implements Action {
+
+  /** Number of entries shown by the charts and the table. */
+  private static final int kMaxEntries = 100;
+
+  /** Size of the chart drawing area, in SVG user units. */
+  private static final int kChartWidth = 500;
+  private static final int kChartHeight = 150;
+
+  private final Job<?, ?> mJob;
+  private transient List<AdvinstTrend.Entry> mEntries;
+
+  AdvinstTrendAction(final Job<?, ?> job) {
+    this.mJob = job;
+  }
+
+  @Override
+  public String getIconFileName() {
+    return "graph.png";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return Messages.MSG_ADVINST_TREND();
+  }
+
+  @Override
+  public String getUrlName() {
+    return "advinstTrend";
+  }
+
+  public Job<?, ?> getJob() {
+    return mJob;
+  }
+
+  /**
+   * @return the latest entries, oldest first
+   */
+  public List<AdvinstTrend.Entry> getEntries() {
+    if (null == mEntries) {
+      mEntries = Collections.unmodifiableList(AdvinstTrend.read(mJob, kMaxEntries));
+    }
+    return mEntries;
+  }
+
+  public int getChartWidth() {
+    return kChartWidth;
+  }
+
+  public int getChartHeight() {
+    return kChartHeight;
+  }
+
+  /**
+   * @return the points of the duration chart, as an SVG polyline
+   */
+  public String getDurationPoints() {
+    return getPoints(AdvinstTrend.Entry::getDurationMillis);
+  }
+
+  /**
+   * @return the points of the package size chart, as an SVG polyline
+   */
+  public String getPackageSizePoints() {
+    return getPoints(e -> Math.max(0, e.getPackageSize()));
+  }
+
+  public long getMaxDurationMillis() {
+    return getEntries().stream().mapToLong(AdvinstTrend.Entry::getDurationMillis).max().orElse(0);
+  }
+
+  public long getMaxPackageSize() {
+    return getEntries().stream().mapToLong(AdvinstTrend.Entry::getPackageSize).max().orElse(0);
+  }
+
+  private String getPoints(final ToLongFunction<AdvinstTrend.Entry> value) {
+    final List<AdvinstTrend.Entry> entries = getEntries();
+    final long max = Math.max(1, entries.stream().mapToLong(value).max().orElse(1));
+    final double step = entries.size() > 1 ? (double) kChartWidth / (entries.size() - 1) : 0;
+
+    StringBuilder points = new StringBuilder();
+    for (int i = 0; i < entries.size(); i++) {
+      final long y = kChartHeight - value.applyAsLong(entries.get(i)) * kChartHeight / max;
+      points.append(Math.round(i * step)).append(',').append(y).append(' ');
+    }
+    return points.toString().trim();
+  }
+}
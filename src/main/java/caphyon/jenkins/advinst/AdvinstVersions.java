@@ -1,30 +1,27 @@
 package caphyon.jenkins.advinst;
 
-import java.io.IOException;
-import java.net.URL;
-import org.ini4j.Profile.Section;
-
 import hudson.util.VersionNumber;
 
-import org.ini4j.Wini;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class AdvinstVersions {
 
-  private List<Section> mVersions;
+  private List<AdvinstReleaseCatalog.Release> mVersions;
 
   public AdvinstVersions() {
-    mVersions = getAllowedReleaseInfo();
+    this(AdvinstReleaseCatalog.get().getReleases());
+  }
+
+  AdvinstVersions(final List<AdvinstReleaseCatalog.Release> releases) {
+    mVersions = getAllowedReleaseInfo(releases);
   }
 
   public String getMinimumAllowedVersion() {
     if (mVersions.isEmpty())
       return "";
-    return mVersions.get(mVersions.size() - 1).get("ProductVersion");
+    return mVersions.get(mVersions.size() - 1).getProductVersion();
   }
 
   public boolean isDeprecated(String version) {
@@ -33,17 +30,12 @@ public class AdvinstVersions {
     return minAllowedVer.isNewerThan(crtVer);
   }
 
-  private List<Section> getAllowedReleaseInfo() {
-    try {
-      final LocalDate minReleaseDate = LocalDate.now().minusMonths(AdvinstConsts.ValidReleaseIntervalMonths);
-      final URL updatesIniUrl = new URL("https://www.advancedinstaller.com/downloads/updates.ini");
-      Wini updatesIni = new Wini(updatesIniUrl);
-      return updatesIni.values().stream().filter(s -> {
-        LocalDate rd = LocalDate.parse(s.get("ReleaseDate"), DateTimeFormatter.ofPattern("dd/M/yyyy"));
-        return minReleaseDate.isBefore(rd) || minReleaseDate.isEqual(rd);
-      }).collect(Collectors.toList());
-    } catch (IOException e) {
-      return new ArrayList<Section>();
-    }
+  private static List<AdvinstReleaseCatalog.Release> getAllowedReleaseInfo(
+      final List<AdvinstReleaseCatalog.Release> releases) {
+    final LocalDate minReleaseDate = LocalDate.now().minusMonths(AdvinstConsts.ValidReleaseIntervalMonths);
+    return releases.stream().filter(r -> {
+      LocalDate rd = r.getReleaseDate();
+      return minReleaseDate.isBefore(rd) || minReleaseDate.isEqual(rd);
+    }).collect(Collectors.toList());
   }
 }
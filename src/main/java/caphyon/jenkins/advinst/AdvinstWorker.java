@@ -0,0 +1,86 @@
+package caphyon.jenkins.advinst;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal Advanced Installer worker, speaking the protocol described in
+ * {@link AdvinstWorkerPool}. Each job runs in a new AdvancedInstaller.com
+ * process, with the environment and working directory received from the
+ * build, so it is a starting point for real workers and a way to check the
+ * protocol on any platform. It only depends on the JDK and runs with:
+ *
+ * <pre>
+ * java -cp advanced-installer-msi-builder.jar caphyon.jenkins.advinst.AdvinstWorker
+ * </pre>
+ *
+ * It stops on QUIT or when its standard input is closed.
+ */
+public final class AdvinstWorker {
+
+  private AdvinstWorker() {
+  }
+
+  public static void main(final String[] args) throws IOException, InterruptedException {
+    final BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    final PrintWriter output = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    final Map<String, String> env = new HashMap<String, String>();
+
+    String line;
+    while ((line = input.readLine()) != null) {
+      if ("PING".equals(line)) {
+        send(output, "PONG");
+      } else if (line.startsWith("ENV ")) {
+        final int separator = line.indexOf('=');
+        if (separator > 4) {
+          env.put(line.substring(4, separator), line.substring(separator + 1));
+        }
+      } else if (line.startsWith("EXECUTE\t")) {
+        final String[] fields = line.split("\t", -1);
+        final int exitCode = fields.length < 5 ? -1 : execute(fields[1], fields[2], fields[3], fields[4], env, output);
+        env.clear();
+        send(output, "EXIT " + exitCode);
+      } else if ("QUIT".equals(line)) {
+        return;
+      } else {
+        System.err.println("Unknown Advanced Installer worker command: " + line);
+      }
+    }
+  }
+
+  private static int execute(final String advinstComPath, final String aipPath, final String aicPath,
+      final String workingDir, final Map<String, String> env, final PrintWriter output) throws InterruptedException {
+    ProcessBuilder processBuilder = new ProcessBuilder(advinstComPath, "/execute", aipPath, aicPath);
+    processBuilder.directory(new File(workingDir));
+    processBuilder.environment().putAll(env);
+    processBuilder.redirectErrorStream(true);
+    try {
+      final Process process = processBuilder.start();
+      try (BufferedReader processOutput = new BufferedReader(
+          new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+        String line;
+        while ((line = processOutput.readLine()) != null) {
+          send(output, "OUT " + line);
+        }
+      }
+      return process.waitFor();
+    } catch (IOException e) {
+      send(output, "OUT " + e.getMessage());
+      return -1;
+    }
+  }
+
+  private static void send(final PrintWriter output, final String line) {
+    output.print(line);
+    output.print('\n');
+    output.flush();
+  }
+}
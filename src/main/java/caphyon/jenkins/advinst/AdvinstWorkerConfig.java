@@ -0,0 +1,101 @@
+package caphyon.jenkins.advinst;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+
+/**
+ * Configuration of the persistent Advanced Installer worker of a node. It is
+ * read from the node environment variables:
+ * <ul>
+ * <li><code>advancedinstaller.worker</code> - command line of the worker
+ * process. The worker mode is enabled only if this is set.</li>
+ * <li><code>advancedinstaller.worker.maxJobs</code> - number of jobs after
+ * which a worker is recycled.</li>
+ * <li><code>advancedinstaller.worker.idleMinutes</code> - idle time after which
+ * a worker is stopped.</li>
+ * <li><code>advancedinstaller.worker.timeoutSeconds</code> - time a worker has
+ * to answer a health check. A worker that does not answer in time is killed
+ * and the build runs in a new Advanced Installer process instead.</li>
+ * </ul>
+ *
+ * @see AdvinstWorkerPool
+ */
+final class AdvinstWorkerConfig implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String kWorkerEnvVar = "advancedinstaller.worker";
+  private static final String kMaxJobsEnvVar = "advancedinstaller.worker.maxJobs";
+  private static final String kIdleMinutesEnvVar = "advancedinstaller.worker.idleMinutes";
+  private static final String kTimeoutSecondsEnvVar = "advancedinstaller.worker.timeoutSeconds";
+  private static final int kDefaultMaxJobs = 50;
+  private static final int kDefaultIdleMinutes = 15;
+  private static final int kDefaultTimeoutSeconds = 30;
+
+  private final String mCommand;
+  private final int mMaxJobs;
+  private final long mIdleTimeoutMillis;
+  private final long mPingTimeoutMillis;
+
+  AdvinstWorkerConfig(final String command, final int maxJobs, final long idleTimeoutMillis,
+      final long pingTimeoutMillis) {
+    this.mCommand = command;
+    this.mMaxJobs = maxJobs;
+    this.mIdleTimeoutMillis = idleTimeoutMillis;
+    this.mPingTimeoutMillis = pingTimeoutMillis;
+  }
+
+  /**
+   * @return the worker configuration of the node, or null if the node does not
+   *         use a worker
+   */
+  static AdvinstWorkerConfig forNode(final Node node) {
+    if (null == node) {
+      return null;
+    }
+
+    EnvVars envVars = new EnvVars();
+    EnvironmentVariablesNodeProperty env = node.getNodeProperties().get(EnvironmentVariablesNodeProperty.class);
+    if (env != null) {
+      envVars.putAll(env.getEnvVars());
+    }
+
+    final String command = Util.fixEmptyAndTrim(envVars.get(kWorkerEnvVar));
+    if (null == command) {
+      return null;
+    }
+    return new AdvinstWorkerConfig(command, getInt(envVars, kMaxJobsEnvVar, kDefaultMaxJobs),
+        TimeUnit.MINUTES.toMillis(getInt(envVars, kIdleMinutesEnvVar, kDefaultIdleMinutes)),
+        TimeUnit.SECONDS.toMillis(getInt(envVars, kTimeoutSecondsEnvVar, kDefaultTimeoutSeconds)));
+  }
+
+  private static int getInt(final EnvVars envVars, final String name, final int defaultValue) {
+    try {
+      final int value = Integer.parseInt(envVars.get(name, String.valueOf(defaultValue)).trim());
+      return value > 0 ? value : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  String getCommand() {
+    return mCommand;
+  }
+
+  int getMaxJobs() {
+    return mMaxJobs;
+  }
+
+  long getIdleTimeoutMillis() {
+    return mIdleTimeoutMillis;
+  }
+
+  long getPingTimeoutMillis() {
+    return mPingTimeoutMillis;
+  }
+}
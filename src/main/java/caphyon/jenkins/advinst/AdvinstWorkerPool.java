@@ -0,0 +1,389 @@
+package caphyon.jenkins.advinst;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import hudson.EnvVars;
+import hudson.Util;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Pool of persistent Advanced Installer worker processes, living in the agent
+ * JVM. There is one set of workers per worker command and Advanced Installer
+ * installation. A worker is recycled after a configured number of jobs and
+ * stopped after being idle for too long.
+ *
+ * Workers talk a line based protocol, UTF-8 encoded, over their standard input
+ * and output:
+ *
+ * <pre>
+ * -&gt; PING
+ * &lt;- PONG
+ * -&gt; ENV name=value           (zero or more)
+ * -&gt; EXECUTE &lt;TAB&gt; advinstComPath &lt;TAB&gt; aipPath &lt;TAB&gt; aicPath &lt;TAB&gt; workingDir
+ * &lt;- OUT output line          (zero or more)
+ * &lt;- EXIT exitCode
+ * -&gt; QUIT
+ * </pre>
+ *
+ * The ENV lines carry the build environment, to be set over the environment of
+ * the worker for the next job only. Variables with line breaks in their name
+ * or value are not sent. A worker must answer PING in the configured time,
+ * otherwise it is killed. A new worker is checked the same way before its
+ * first job, and the build runs in a new Advanced Installer process if it does
+ * not answer. The standard error of the worker goes to the agent log.
+ *
+ * @see AdvinstWorker
+ */
+final class AdvinstWorkerPool {
+
+  private static final long kReaperPeriodMillis = TimeUnit.MINUTES.toMillis(1);
+  private static final long kStopTimeoutMillis = TimeUnit.SECONDS.toMillis(5);
+
+  private static final Map<String, Deque<Worker>> kIdleWorkers = new HashMap<String, Deque<Worker>>();
+  private static final Map<String, Worker> kBusyWorkers = new ConcurrentHashMap<String, Worker>();
+  private static ScheduledExecutorService kReaper = null;
+
+  private AdvinstWorkerPool() {
+  }
+
+  /**
+   * Execute a job in a worker of the pool.
+   *
+   * @param config         worker configuration
+   * @param jobId          unique id of the job, used to abort it
+   * @param advinstComPath path of AdvancedInstaller.com
+   * @param aipPath        path of the project
+   * @param aicPath        path of the command file
+   * @param env            environment of the build
+   * @param workingDir     working directory of the job
+   * @param log            stream receiving the job output
+   * @return the job exit code
+   * @throws WorkerUnavailableException if no worker could be started, so the
+   *                                    job did not run
+   */
+  static int execute(final AdvinstWorkerConfig config, final String jobId, final String advinstComPath,
+      final String aipPath, final String aicPath, final Map<String, String> env, final String workingDir,
+      final OutputStream log) throws IOException, InterruptedException {
+    final String key = config.getCommand() + "\n" + advinstComPath;
+    final Worker worker = acquire(key, config);
+    kBusyWorkers.put(jobId, worker);
+    boolean reusable = false;
+    try {
+      final int result = worker.execute(advinstComPath, aipPath, aicPath, env, workingDir, log);
+      reusable = worker.getJobs() < config.getMaxJobs();
+      return result;
+    } finally {
+      kBusyWorkers.remove(jobId);
+      if (reusable) {
+        release(key, worker);
+      } else {
+        worker.stop();
+      }
+    }
+  }
+
+  /**
+   * Kill the worker running the given job, if any.
+   */
+  static void abort(final String jobId) {
+    final Worker worker = kBusyWorkers.remove(jobId);
+    if (null != worker) {
+      worker.kill();
+    }
+  }
+
+  private static Worker acquire(final String key, final AdvinstWorkerConfig config)
+      throws IOException, InterruptedException {
+    while (true) {
+      Worker worker;
+      synchronized (kIdleWorkers) {
+        final Deque<Worker> idleWorkers = kIdleWorkers.get(key);
+        worker = null == idleWorkers ? null : idleWorkers.pollFirst();
+      }
+      if (null == worker) {
+        break;
+      }
+      if (worker.isExpired()) {
+        worker.stop();
+        continue;
+      }
+      // Health check before reusing a worker.
+      if (worker.ping(config.getPingTimeoutMillis())) {
+        return worker;
+      }
+      worker.kill();
+    }
+
+    startReaper();
+    final Worker worker;
+    try {
+      worker = new Worker(Util.tokenize(config.getCommand()), config.getIdleTimeoutMillis());
+    } catch (IOException e) {
+      throw new WorkerUnavailableException("Failed to start the Advanced Installer worker: " + e.getMessage());
+    }
+    if (!worker.ping(config.getPingTimeoutMillis())) {
+      worker.kill();
+      throw new WorkerUnavailableException("The Advanced Installer worker did not answer within "
+          + config.getPingTimeoutMillis() + " ms");
+    }
+    return worker;
+  }
+
+  private static void release(final String key, final Worker worker) {
+    synchronized (kIdleWorkers) {
+      // Most recently used first, so the warmest worker is reused.
+      kIdleWorkers.computeIfAbsent(key, k -> new ArrayDeque<Worker>()).addFirst(worker);
+    }
+  }
+
+  private static synchronized void startReaper() {
+    if (null != kReaper) {
+      return;
+    }
+    kReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "Advanced Installer worker reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    kReaper.scheduleWithFixedDelay(AdvinstWorkerPool::stopExpiredWorkers, kReaperPeriodMillis, kReaperPeriodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private static void stopExpiredWorkers() {
+    Deque<Worker> expiredWorkers = new ArrayDeque<Worker>();
+    synchronized (kIdleWorkers) {
+      for (Deque<Worker> idleWorkers : kIdleWorkers.values()) {
+        Iterator<Worker> it = idleWorkers.iterator();
+        while (it.hasNext()) {
+          Worker worker = it.next();
+          if (worker.isExpired()) {
+            it.remove();
+            expiredWorkers.add(worker);
+          }
+        }
+      }
+    }
+    for (Worker worker : expiredWorkers) {
+      worker.stop();
+    }
+  }
+
+  /** No job could run in a worker, the caller may start a new process instead. */
+  static final class WorkerUnavailableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    WorkerUnavailableException(final String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * A worker process. Its output is read by a dedicated thread into a queue, so
+   * waiting for an answer can time out.
+   */
+  private static final class Worker {
+    /** Queued after the last line of output. Never read from the worker. */
+    private static final String kEndOfOutput = "\n";
+
+    private final Process mProcess;
+    private final BufferedWriter mInput;
+    private final BlockingQueue<String> mOutput = new LinkedBlockingQueue<String>();
+    private final long mIdleTimeoutMillis;
+    private int mJobs = 0;
+    private volatile long mLastUsed;
+
+    Worker(final String[] command, final long idleTimeoutMillis) throws IOException {
+      ProcessBuilder processBuilder = new ProcessBuilder(command);
+      processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+      this.mProcess = processBuilder.start();
+      this.mInput = new BufferedWriter(new OutputStreamWriter(mProcess.getOutputStream(), StandardCharsets.UTF_8));
+      this.mIdleTimeoutMillis = idleTimeoutMillis;
+      this.mLastUsed = System.currentTimeMillis();
+
+      final BufferedReader output = new BufferedReader(
+          new InputStreamReader(mProcess.getInputStream(), StandardCharsets.UTF_8));
+      Thread reader = new Thread(() -> {
+        try {
+          String line;
+          while ((line = output.readLine()) != null) {
+            mOutput.add(line);
+          }
+        } catch (IOException e) {
+          // the worker is gone
+        } finally {
+          mOutput.add(kEndOfOutput);
+        }
+      }, "Advanced Installer worker output");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    int getJobs() {
+      return mJobs;
+    }
+
+    boolean isExpired() {
+      return System.currentTimeMillis() - mLastUsed > mIdleTimeoutMillis;
+    }
+
+    /**
+     * @return true if the worker answered PONG within the timeout
+     */
+    boolean ping(final long timeoutMillis) throws InterruptedException {
+      if (!mProcess.isAlive()) {
+        return false;
+      }
+      try {
+        mOutput.clear();
+        send("PING");
+        return "PONG".equals(mOutput.poll(timeoutMillis, TimeUnit.MILLISECONDS));
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    int execute(final String advinstComPath, final String aipPath, final String aicPath,
+        final Map<String, String> env, final String workingDir, final OutputStream log)
+        throws IOException, InterruptedException {
+      for (Map.Entry<String, String> variable : env.entrySet()) {
+        if (isSingleLine(variable.getKey()) && isSingleLine(variable.getValue())) {
+          write("ENV " + variable.getKey() + "=" + variable.getValue());
+        }
+      }
+      send("EXECUTE\t" + advinstComPath + "\t" + aipPath + "\t" + aicPath + "\t" + workingDir);
+      String line;
+      while (!kEndOfOutput.equals(line = mOutput.take())) {
+        if (line.startsWith("OUT ")) {
+          log.write((line.substring(4) + "\n").getBytes(StandardCharsets.UTF_8));
+        } else if (line.startsWith("EXIT ")) {
+          log.flush();
+          mJobs++;
+          mLastUsed = System.currentTimeMillis();
+          try {
+            return Integer.parseInt(line.substring(5).trim());
+          } catch (NumberFormatException e) {
+            throw new IOException("Invalid Advanced Installer worker response: " + line, e);
+          }
+        }
+      }
+      throw new IOException("Advanced Installer worker exited unexpectedly");
+    }
+
+    void stop() {
+      try {
+        send("QUIT");
+        if (mProcess.waitFor(kStopTimeoutMillis, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      } catch (IOException e) {
+        // the worker is gone, make sure the process is too
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      kill();
+    }
+
+    void kill() {
+      // AdvancedInstaller.com runs as a child of the worker and would keep
+      // building, so the descendants are killed first, while they are still
+      // known as such.
+      mProcess.descendants().forEach(ProcessHandle::destroyForcibly);
+      mProcess.destroyForcibly();
+    }
+
+    private void send(final String line) throws IOException {
+      write(line);
+      mInput.flush();
+    }
+
+    private void write(final String line) throws IOException {
+      mInput.write(line);
+      mInput.write("\n");
+    }
+
+    private static boolean isSingleLine(final String value) {
+      return value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+  }
+
+  /** Executes a job in a worker of the node. */
+  static final class Execute extends MasterToSlaveCallable<Integer, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    private final AdvinstWorkerConfig mConfig;
+    private final String mJobId;
+    private final String mAdvinstComPath;
+    private final String mAipPath;
+    private final String mAicPath;
+    private final EnvVars mEnv;
+    private final String mWorkingDir;
+    private final OutputStream mLog;
+    private final String mFullLogPath;
+
+    /**
+     * @param fullLogPath path of the full log on the node, or null to send the
+     *                    whole output to the build log
+     */
+    Execute(final AdvinstWorkerConfig config, final String jobId, final String advinstComPath, final String aipPath,
+        final String aicPath, final EnvVars env, final String workingDir, final OutputStream log,
+        final String fullLogPath) {
+      this.mConfig = config;
+      this.mJobId = jobId;
+      this.mAdvinstComPath = advinstComPath;
+      this.mAipPath = aipPath;
+      this.mAicPath = aicPath;
+      this.mEnv = env;
+      this.mWorkingDir = workingDir;
+      this.mLog = log;
+      this.mFullLogPath = fullLogPath;
+    }
+
+    @Override
+    public Integer call() throws IOException {
+      try {
+        if (null == mFullLogPath) {
+          return execute(mConfig, mJobId, mAdvinstComPath, mAipPath, mAicPath, mEnv, mWorkingDir, mLog);
+        }
+        try (OutputStream log = AdvinstLogFilter.create(mLog, mFullLogPath, StandardCharsets.UTF_8)) {
+          return execute(mConfig, mJobId, mAdvinstComPath, mAipPath, mAicPath, mEnv, mWorkingDir, log);
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /** Aborts a job running in a worker of the node. */
+  static final class Abort extends MasterToSlaveCallable<Void, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    private final String mJobId;
+
+    Abort(final String jobId) {
+      this.mJobId = jobId;
+    }
+
+    @Override
+    public Void call() {
+      abort(mJobId);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+
+public class AdvinstAipCacheTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  @Test
+  public void unchangedProjectIsNotReadAgain() throws Exception {
+    final AdvinstAipCache cache = new AdvinstAipCache(4);
+    final File aip = writeAip("setup.aip", "x64");
+    final long lastModified = aip.lastModified();
+
+    assertThat(cache.get(new FilePath(aip)).getBuilds(), contains("x64"));
+    // Same size and modification time, but no XML any more: reading it again
+    // would fail.
+    final byte[] content = Files.readAllBytes(aip.toPath());
+    for (int i = 0; i < content.length; i++) {
+      content[i] = ' ';
+    }
+    Files.write(aip.toPath(), content);
+    aip.setLastModified(lastModified);
+
+    assertThat(cache.get(new FilePath(aip)).getBuilds(), contains("x64"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void changedProjectIsReadAgain() throws Exception {
+    final AdvinstAipCache cache = new AdvinstAipCache(4);
+    final File aip = writeAip("setup.aip", "x64");
+    cache.get(new FilePath(aip));
+
+    writeAip("setup.aip", "arm64");
+    aip.setLastModified(aip.lastModified() + 2000);
+
+    assertThat(cache.get(new FilePath(aip)).getBuilds(), contains("arm64"));
+    assertEquals(0, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void leastRecentlyUsedProjectIsEvicted() throws Exception {
+    final AdvinstAipCache cache = new AdvinstAipCache(2);
+    final FilePath first = new FilePath(writeAip("first.aip", "x64"));
+    final FilePath second = new FilePath(writeAip("second.aip", "x64"));
+    final FilePath third = new FilePath(writeAip("third.aip", "x64"));
+
+    cache.get(first);
+    cache.get(second);
+    // The first project becomes the most recently used one.
+    cache.get(first);
+    cache.get(third);
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    cache.get(first);
+    assertEquals(2, cache.getHits());
+    cache.get(second);
+    assertEquals(4, cache.getMisses());
+  }
+
+  private File writeAip(final String name, final String buildName) throws Exception {
+    final File aip = new File(mTemp.getRoot(), name);
+    Files.write(aip.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n"
+        + "<DOCUMENT Type=\"Advanced Installer\" version=\"21.0\">\r\n"
+        + "  <COMPONENT cid=\"caphyon.advinst.msicomp.BuildComponent\">\r\n"
+        + "    <ROW BuildKey=\"" + buildName + "\" BuildName=\"" + buildName + "\"/>\r\n"
+        + "  </COMPONENT>\r\n"
+        + "</DOCUMENT>\r\n").getBytes(StandardCharsets.UTF_8));
+    return aip;
+  }
+}
@@ -0,0 +1,116 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class AdvinstAipReaderTest {
+
+  private static final String kDeclaration = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n";
+
+  private static final String kHead = kDeclaration
+      + "<DOCUMENT Type=\"Advanced Installer\" CreateVersion=\"21.0\" version=\"21.0\" Modules=\"professional\">\r\n"
+      + "  <COMPONENT cid=\"caphyon.advinst.msicomp.MsiPropsComponent\">\r\n"
+      + "    <ROW Property=\"Manufacturer\" Value=\"Caphyon\"/>\r\n"
+      + "    <ROW Property=\"ProductVersion\" Value=\"1.2.3\"/>\r\n"
+      + "  </COMPONENT>\r\n"
+      + "  <COMPONENT cid=\"caphyon.advinst.msicomp.BuildComponent\">\r\n"
+      + "    <ROW BuildKey=\"DefaultBuild\" BuildName=\"DefaultBuild\" BuildType=\"0\"/>\r\n"
+      + "    <ROW BuildKey=\"x64\" BuildName=\"x64\" BuildType=\"0\"/>\r\n"
+      + "  </COMPONENT>\r\n";
+
+  private static final String kTail = "</DOCUMENT>\r\n";
+
+  @Test
+  public void readsBuildsVersionAndType() throws Exception {
+    final AdvinstAipInfo info = AdvinstAipReader.readAipInfo(toStream(kHead + kTail));
+
+    assertThat(info.getBuilds(), contains("DefaultBuild", "x64"));
+    assertEquals("1.2.3", info.getProductVersion());
+    assertEquals("Advanced Installer", info.getPackageType());
+  }
+
+  @Test
+  public void stopsAfterBuildsAndProperties() throws Exception {
+    final StringBuilder aip = new StringBuilder(kHead);
+    aip.append("  <COMPONENT cid=\"caphyon.advinst.msicomp.MsiFilesComponent\">\r\n");
+    for (int i = 0; i < 50000; i++) {
+      aip.append("    <ROW File=\"file").append(i).append(".dll\" SourcePath=\"bin\\file").append(i)
+          .append(".dll\"/>\r\n");
+    }
+    aip.append("  </COMPONENT>\r\n").append(kTail);
+    final byte[] content = aip.toString().getBytes(StandardCharsets.UTF_8);
+    final CountingInputStream stream = new CountingInputStream(new ByteArrayInputStream(content));
+
+    final AdvinstAipInfo info = AdvinstAipReader.readAipInfo(stream);
+
+    assertThat(info.getBuilds(), contains("DefaultBuild", "x64"));
+    // Only the parser buffer past the build component may have been read.
+    assertThat(stream.mCount, lessThan(content.length / 10L));
+  }
+
+  @Test
+  public void readsXml10ProjectWithXml11Characters() throws Exception {
+    // &#1; is only valid in XML 1.1; the UTF-8 BOM is skipped.
+    final String aip = kHead.replace("Value=\"Caphyon\"", "Value=\"Cap&#1;hyon\"") + kTail;
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    content.write(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF });
+    content.write(aip.getBytes(StandardCharsets.UTF_8));
+
+    final AdvinstAipInfo info = AdvinstAipReader.readAipInfo(new ByteArrayInputStream(content.toByteArray()));
+
+    assertThat(info.getBuilds(), contains("DefaultBuild", "x64"));
+    assertEquals("1.2.3", info.getProductVersion());
+  }
+
+  @Test
+  public void otherXmlIsNotAProject() throws Exception {
+    final AdvinstAipInfo info = AdvinstAipReader.readAipInfo(
+        toStream(kDeclaration + "<project><COMPONENT cid=\"x\"/></project>"));
+
+    assertNull(info.getPackageType());
+    assertThat(info.getBuilds(), empty());
+  }
+
+  private static InputStream toStream(final String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+    private long mCount;
+
+    CountingInputStream(final InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b >= 0) {
+        mCount++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      final int n = super.read(b, off, len);
+      if (n > 0) {
+        mCount += n;
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package caphyon.jenkins.advinst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+
+public class AdvinstCommandsFileTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  @Test
+  public void commandsAreExpandedAndEmptyLinesSkipped() throws Exception {
+    final AdvinstCommandsFile commandsFile = create("\uFEFFSetVersion ${VERSION}\n\n   \r\n"
+        + "SetProperty Name=\"\u00e9t\u00e9\"\r\nResetSig", new EnvVars("VERSION", "1.2.3"));
+
+    final StringWriter writer = new StringWriter();
+    assertEquals(3, commandsFile.copyTo(writer));
+    assertEquals("SetVersion 1.2.3\r\nSetProperty Name=\"\u00e9t\u00e9\"\r\nResetSig\r\n", writer.toString());
+  }
+
+  @Test
+  public void hashCoversTheExpandedCommands() throws Exception {
+    final String content = "SetVersion ${VERSION}\n";
+    final String sha256 = create(content, new EnvVars("VERSION", "1.0")).sha256();
+
+    assertEquals(AdvinstDigest.sha256("SetVersion 1.0\r\n".getBytes(StandardCharsets.UTF_8)), sha256);
+    assertNotEquals(sha256, create(content, new EnvVars("VERSION", "2.0")).sha256());
+  }
+
+  @Test(expected = IOException.class)
+  public void missingFileFails() throws Exception {
+    new AdvinstCommandsFile(new FilePath(new File(mTemp.getRoot(), "missing.txt")), new EnvVars())
+        .copyTo(new StringWriter());
+  }
+
+  private AdvinstCommandsFile create(final String content, final EnvVars env) throws IOException {
+    final File file = mTemp.newFile();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return new AdvinstCommandsFile(new FilePath(file), env);
+  }
+}
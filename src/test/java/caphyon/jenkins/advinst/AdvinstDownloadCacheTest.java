@@ -0,0 +1,159 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.util.StreamTaskListener;
+
+/**
+ * Downloads from a minimal HTTP server that drops the first transfer half way
+ * and then honors the Range request of the retry.
+ */
+public class AdvinstDownloadCacheTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  private final byte[] mContent = new byte[300 * 1024];
+  private final AtomicInteger mRequests = new AtomicInteger();
+  private volatile boolean mDropFirstTransfer;
+  private volatile String mLastRange;
+  private ServerSocket mServer;
+  private Thread mServerThread;
+
+  @Before
+  public void setUp() throws Exception {
+    new Random(42).nextBytes(mContent);
+    mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    mServerThread = new Thread(this::serve, "AdvinstDownloadCacheTest server");
+    mServerThread.setDaemon(true);
+    mServerThread.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    mServer.close();
+    mServerThread.join();
+  }
+
+  @Test(timeout = 60000)
+  public void interruptedDownloadIsResumed() throws Exception {
+    mDropFirstTransfer = true;
+    final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    final AdvinstDownloadCache.Entry entry = AdvinstDownloadCache.get(mTemp.getRoot(), "20.0", getUrl(),
+        AdvinstDigest.sha256(mContent), new StreamTaskListener(log, StandardCharsets.UTF_8));
+
+    assertEquals(2, mRequests.get());
+    assertEquals("bytes=" + mContent.length / 2 + "-", mLastRange);
+    assertArrayEquals(mContent, Files.readAllBytes(entry.getMsiFile().toPath()));
+    assertEquals(AdvinstDigest.sha256(mContent), entry.getSha256());
+    assertThat(log.toString(StandardCharsets.UTF_8.name()), containsString("Resuming download"));
+  }
+
+  @Test(timeout = 60000)
+  public void cachedPackageIsNotDownloadedAgain() throws Exception {
+    final StreamTaskListener listener = StreamTaskListener.fromStdout();
+    AdvinstDownloadCache.get(mTemp.getRoot(), "20.0", getUrl(), null, listener);
+    final AdvinstDownloadCache.Entry entry = AdvinstDownloadCache.get(mTemp.getRoot(), "20.0", getUrl(), null,
+        listener);
+
+    assertEquals(1, mRequests.get());
+    assertArrayEquals(mContent, Files.readAllBytes(entry.getMsiFile().toPath()));
+  }
+
+  @Test(timeout = 60000)
+  public void checksumMismatchIsNotCached() throws Exception {
+    final String wrongSha256 = AdvinstDigest.sha256(new byte[] { 1, 2, 3 });
+    try {
+      AdvinstDownloadCache.get(mTemp.getRoot(), "20.0", getUrl(), wrongSha256, StreamTaskListener.fromStdout());
+      fail("The checksum mismatch was not detected");
+    } catch (IOException e) {
+      assertThat(e.getMessage(), containsString(wrongSha256));
+    }
+
+    final File[] entryFolders = mTemp.getRoot().listFiles();
+    assertThat(entryFolders, arrayWithSize(1));
+    assertThat(entryFolders[0].listFiles(), arrayWithSize(0));
+  }
+
+  @Test(timeout = 60000)
+  public void leastRecentlyUsedPackagesAreEvicted() throws Exception {
+    final StreamTaskListener listener = StreamTaskListener.fromStdout();
+    for (int i = 0; i < 3; i++) {
+      AdvinstDownloadCache.get(mTemp.getRoot(), "20." + i, getUrl(), null, listener);
+    }
+    // Make the age of the entries independent of the file system precision.
+    for (File entryFolder : mTemp.getRoot().listFiles()) {
+      entryFolder.setLastModified(entryFolder.getName().startsWith("20.0") ? 1000000L : 2000000L);
+    }
+
+    AdvinstDownloadCache.get(mTemp.getRoot(), "20.3", getUrl(), null, listener);
+
+    final File[] entryFolders = mTemp.getRoot().listFiles();
+    assertThat(entryFolders, arrayWithSize(3));
+    for (File entryFolder : entryFolders) {
+      assertFalse(entryFolder.getName().startsWith("20.0"));
+    }
+  }
+
+  private String getUrl() {
+    return "http://" + mServer.getInetAddress().getHostAddress() + ":" + mServer.getLocalPort() + "/advinst.msi";
+  }
+
+  private void serve() {
+    while (!mServer.isClosed()) {
+      try (Socket socket = mServer.accept()) {
+        final int request = mRequests.incrementAndGet();
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        int offset = 0;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+          if (line.toLowerCase().startsWith("range: bytes=")) {
+            mLastRange = line.substring("range: ".length());
+            offset = Integer.parseInt(mLastRange.substring("bytes=".length(), mLastRange.indexOf('-')));
+          }
+        }
+
+        final OutputStream os = socket.getOutputStream();
+        final String status = offset > 0 ? "206 Partial Content" : "200 OK";
+        final String headers = "HTTP/1.1 " + status + "\r\n"
+            + "Content-Length: " + (mContent.length - offset) + "\r\n"
+            + "Connection: close\r\n\r\n";
+        os.write(headers.getBytes(StandardCharsets.US_ASCII));
+        // The first transfer stops half way, as a dropped connection.
+        final int end = mDropFirstTransfer && request == 1 ? mContent.length / 2 : mContent.length;
+        os.write(mContent, offset, end - offset);
+        os.flush();
+      } catch (IOException e) {
+        // The server socket was closed.
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+
+public class AdvinstIncrementalBuildTest {
+
+  private static final String kAip = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n"
+      + "<DOCUMENT Type=\"Advanced Installer\" version=\"21.0\">\r\n"
+      + "  <COMPONENT cid=\"caphyon.advinst.msicomp.MsiDirsComponent\">\r\n"
+      + "    <ROW Directory=\"data\" SourcePath=\"data\"/>\r\n"
+      + "  </COMPONENT>\r\n"
+      + "</DOCUMENT>\r\n";
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  @Test
+  public void fingerprintCoversTheFilesOfReferencedFolders() throws Exception {
+    final File aip = write(new File(mTemp.getRoot(), "setup.aip"), kAip);
+    write(new File(mTemp.getRoot(), "data/app.exe"), "app");
+    write(new File(mTemp.getRoot(), "data/docs/readme.txt"), "readme");
+
+    final String fingerprint = computeFingerprint(aip);
+    assertNotNull(fingerprint);
+    assertEquals(fingerprint, computeFingerprint(aip));
+
+    write(new File(mTemp.getRoot(), "data/docs/readme.txt"), "changed");
+    final String changed = computeFingerprint(aip);
+    assertNotEquals(fingerprint, changed);
+
+    write(new File(mTemp.getRoot(), "data/docs/license.txt"), "license");
+    assertNotEquals(changed, computeFingerprint(aip));
+  }
+
+  @Test
+  public void recordedOutputIsRestoredForTheSameFingerprint() throws Exception {
+    final StreamTaskListener listener = StreamTaskListener.fromStdout();
+    final FilePath cacheDir = new FilePath(mTemp.getRoot()).child("cache").child("entry");
+    final File output = mTemp.newFolder("output");
+    write(new File(output, "setup.msi"), "msi");
+    write(new File(output, "cab/data.cab"), "cab");
+
+    new AdvinstIncrementalBuild(cacheDir, new FilePath(output), "v1").record(listener);
+    new FilePath(output).deleteContents();
+
+    assertFalse(new AdvinstIncrementalBuild(cacheDir, new FilePath(output), "v2").restore(listener));
+    assertTrue(new AdvinstIncrementalBuild(cacheDir, new FilePath(output), "v1").restore(listener));
+    assertEquals("msi", read(new File(output, "setup.msi")));
+    assertEquals("cab", read(new File(output, "cab/data.cab")));
+  }
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+    final File cacheRoot = mTemp.newFolder("cache");
+    for (int i = 0; i < 4; i++) {
+      // Make the age of the entries independent of the file system precision.
+      write(new File(cacheRoot, "entry" + i + "/fingerprint"), "f").setLastModified(1000000L * (i + 1));
+    }
+
+    // The oldest entry was just recorded, so it is kept.
+    new AdvinstIncrementalBuild.Evict("entry0", 2).invoke(cacheRoot, null);
+
+    assertThat(cacheRoot.list(), arrayContainingInAnyOrder("entry0", "entry3"));
+  }
+
+  private String computeFingerprint(final File aip) throws IOException, InterruptedException {
+    return new AdvinstIncrementalBuild.ComputeFingerprint(Collections.singletonList("ResetSig"), null,
+        new File(mTemp.getRoot(), "AdvancedInstaller.com").getPath()).invoke(aip, null);
+  }
+
+  private static File write(final File file, final String content) throws IOException {
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  private static String read(final File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,136 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+public class AdvinstInstallLockTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  private final TaskListener mListener = new StreamTaskListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+  private final AtomicInteger mDeployments = new AtomicInteger();
+  private final CountDownLatch mLeaderStarted = new CountDownLatch(1);
+  private final CountDownLatch mLeaderRelease = new CountDownLatch(1);
+  private FilePath mToolRoot;
+
+  @Before
+  public void setUp() throws Exception {
+    mToolRoot = new FilePath(mTemp.newFolder("advinst"));
+  }
+
+  @Test(timeout = 30000)
+  public void concurrentCallersShareOneDeployment() throws Exception {
+    final Caller leader = start("concurrent", () -> {
+      mDeployments.incrementAndGet();
+      mLeaderStarted.countDown();
+      mLeaderRelease.await();
+      return mToolRoot;
+    });
+    mLeaderStarted.await();
+    final Caller first = start("concurrent", this::deployAgain);
+    final Caller second = start("concurrent", this::deployAgain);
+    awaitWaiting(first.mThread);
+    awaitWaiting(second.mThread);
+
+    mLeaderRelease.countDown();
+
+    assertSame(mToolRoot, leader.join());
+    assertSame(mToolRoot, first.join());
+    assertSame(mToolRoot, second.join());
+    assertEquals(1, mDeployments.get());
+  }
+
+  @Test(timeout = 30000)
+  public void waiterTakesOverWhenTheLeaderIsInterrupted() throws Exception {
+    final Caller leader = start("interrupted", () -> {
+      mDeployments.incrementAndGet();
+      mLeaderStarted.countDown();
+      mLeaderRelease.await();
+      return mToolRoot;
+    });
+    mLeaderStarted.await();
+    final Caller waiter = start("interrupted", this::deployAgain);
+    awaitWaiting(waiter.mThread);
+
+    leader.mThread.interrupt();
+
+    assertThat(leader.join(), instanceOf(InterruptedException.class));
+    assertSame(mToolRoot, waiter.join());
+    assertEquals(2, mDeployments.get());
+  }
+
+  @Test(timeout = 30000)
+  public void waitersFailWhenTheDeploymentFails() throws Exception {
+    final Caller leader = start("failed", () -> {
+      mDeployments.incrementAndGet();
+      mLeaderStarted.countDown();
+      mLeaderRelease.await();
+      throw new IOException("download failed");
+    });
+    mLeaderStarted.await();
+    final Caller waiter = start("failed", this::deployAgain);
+    awaitWaiting(waiter.mThread);
+
+    mLeaderRelease.countDown();
+
+    assertThat(leader.join(), instanceOf(IOException.class));
+    final Object result = waiter.join();
+    assertThat(result, instanceOf(AdvinstInstaller.InstallationFailedException.class));
+    assertEquals("download failed", ((IOException) result).getMessage());
+    assertEquals(1, mDeployments.get());
+  }
+
+  private FilePath deployAgain() {
+    mDeployments.incrementAndGet();
+    return mToolRoot;
+  }
+
+  private Caller start(final String nodeName, final AdvinstInstallLock.Deployment deployment) {
+    final Caller caller = new Caller();
+    caller.mThread = new Thread(() -> {
+      try {
+        caller.mResult.set(AdvinstInstallLock.singleFlight(nodeName, nodeName, mToolRoot, mListener, deployment));
+      } catch (IOException | InterruptedException e) {
+        caller.mResult.set(e);
+      }
+    }, nodeName);
+    caller.mThread.start();
+    return caller;
+  }
+
+  private static void awaitWaiting(final Thread thread) throws InterruptedException {
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+  }
+
+  /** A thread calling singleFlight, with its result or exception. */
+  private static final class Caller {
+    private final AtomicReference<Object> mResult = new AtomicReference<Object>();
+    private Thread mThread;
+
+    Object join() throws InterruptedException {
+      mThread.join();
+      return mResult.get();
+    }
+  }
+}
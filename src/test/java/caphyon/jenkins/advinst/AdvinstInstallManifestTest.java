@@ -0,0 +1,68 @@
+package caphyon.jenkins.advinst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AdvinstInstallManifestTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  private File mRoot;
+  private File mAdvinstCom;
+
+  @Before
+  public void setUp() throws Exception {
+    mRoot = mTemp.getRoot();
+    mAdvinstCom = new File(mRoot, AdvinstInstallation.advinstComSubPath);
+    write(mAdvinstCom, 10);
+    write(new File(mRoot, "bin/x86/advinst.dll"), 20);
+  }
+
+  @Test
+  public void manifestIsReadBack() throws Exception {
+    new AdvinstInstallManifest.Write("21.0", "hash", true).invoke(mRoot, null);
+
+    final AdvinstInstallManifest manifest = new AdvinstInstallManifest.Read().invoke(mRoot, null);
+    assertEquals("21.0", manifest.getVersion());
+    assertTrue(manifest.matches("21.0", "hash", true));
+    assertFalse(manifest.matches("21.0", "other", true));
+    assertFalse(manifest.matches("21.0", "hash", false));
+    assertTrue(new AdvinstInstallManifest.VerifyFiles(manifest.getFilesHash()).invoke(mRoot, null));
+  }
+
+  @Test
+  public void changedFilesDoNotInvalidateTheFastPath() throws Exception {
+    new AdvinstInstallManifest.Write("21.0", "hash", false).invoke(mRoot, null);
+    // Advanced Installer writes its own files in the tool root.
+    write(new File(mRoot, "bin/x86/settings.dat"), 5);
+    write(new File(mRoot, "bin/x86/advinst.dll"), 30);
+
+    final AdvinstInstallManifest manifest = new AdvinstInstallManifest.Read().invoke(mRoot, null);
+    assertTrue(manifest.matches("21.0", "hash", false));
+    assertFalse(new AdvinstInstallManifest.VerifyFiles(manifest.getFilesHash()).invoke(mRoot, null));
+  }
+
+  @Test
+  public void missingExecutableHasNoManifest() throws Exception {
+    new AdvinstInstallManifest.Write("21.0", "hash", false).invoke(mRoot, null);
+    Files.delete(mAdvinstCom.toPath());
+
+    assertNull(new AdvinstInstallManifest.Read().invoke(mRoot, null));
+  }
+
+  private static void write(final File file, final int size) throws Exception {
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), new byte[size]);
+  }
+}
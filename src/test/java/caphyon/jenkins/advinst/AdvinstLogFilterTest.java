@@ -0,0 +1,64 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class AdvinstLogFilterTest {
+
+  private static final String kOutput = "Loading project C:\\setup.aip\r\n"
+      + "[1/4] SetVersion 1.0\r\n"
+      + "[2/4] SetProperty A=1\r\n"
+      + "[3/4] SetProperty B=2\r\n"
+      + "[4/4] AddFile failed: missing.txt\r\n"
+      + "Building package\r\n"
+      + "file1.dll\r\n"
+      + "\r\n"
+      + "file2.dll\r\n"
+      + "Warning: the package is not signed\r\n"
+      + "Total build time: 10 s\r\n";
+
+  @Test
+  public void forwardsPhasesAndProblemsAndCollapsesTheRest() throws Exception {
+    final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    final ByteArrayOutputStream fullLog = new ByteArrayOutputStream();
+    try (AdvinstLogFilter filter = new AdvinstLogFilter(log, fullLog, StandardCharsets.UTF_8)) {
+      filter.write(kOutput.getBytes(StandardCharsets.UTF_8));
+    }
+
+    assertThat(Arrays.asList(log.toString(StandardCharsets.UTF_8.name()).split("\r?\n")), contains(
+        Messages.MSG_ADVINST_LOG_PHASE(AdvinstLogFilter.Phase.LOAD.getDisplayName()),
+        "Loading project C:\\setup.aip",
+        Messages.MSG_ADVINST_LOG_PHASE(AdvinstLogFilter.Phase.COMMANDS.getDisplayName()),
+        "[1/4] SetVersion 1.0",
+        "[4/4] AddFile failed: missing.txt",
+        Messages.MSG_ADVINST_LOG_SUMMARY(AdvinstLogFilter.Phase.COMMANDS.getDisplayName(), 2),
+        Messages.MSG_ADVINST_LOG_PHASE(AdvinstLogFilter.Phase.FILES.getDisplayName()),
+        "Building package",
+        "Warning: the package is not signed",
+        Messages.MSG_ADVINST_LOG_SUMMARY(AdvinstLogFilter.Phase.FILES.getDisplayName(), 2),
+        Messages.MSG_ADVINST_LOG_PHASE(AdvinstLogFilter.Phase.DONE.getDisplayName()),
+        "Total build time: 10 s"));
+    assertEquals(kOutput, fullLog.toString(StandardCharsets.UTF_8.name()));
+  }
+
+  @Test
+  public void phasesOnlyMoveForward() throws Exception {
+    final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    try (AdvinstLogFilter filter = new AdvinstLogFilter(log, new ByteArrayOutputStream(), StandardCharsets.UTF_8)) {
+      filter.write(("Building package\r\nLoading resources\r\n[1/1] SetVersion 1.0\r\n")
+          .getBytes(StandardCharsets.UTF_8));
+    }
+
+    assertThat(Arrays.asList(log.toString(StandardCharsets.UTF_8.name()).split("\r?\n")), contains(
+        Messages.MSG_ADVINST_LOG_PHASE(AdvinstLogFilter.Phase.FILES.getDisplayName()),
+        "Building package",
+        Messages.MSG_ADVINST_LOG_SUMMARY(AdvinstLogFilter.Phase.FILES.getDisplayName(), 2)));
+  }
+}
@@ -0,0 +1,51 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AdvinstManifestTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  @Test
+  public void scanListsSizesSortedPathsAndHashes() throws Exception {
+    final File output = mTemp.newFolder("output");
+    write(new File(output, "setup.msi"), "msi");
+    write(new File(output, "disk1/data.cab"), "cabinet");
+    write(new File(output, "disk1/sub/extra.bin"), "");
+    write(new File(output, "app-x64.msi"), "x64");
+
+    final List<AdvinstManifest.Entry> entries = new AdvinstManifest.Scan().invoke(output, null);
+
+    assertThat(entries.stream().map(AdvinstManifest.Entry::getPath).collect(Collectors.toList()),
+        contains("app-x64.msi", "disk1/data.cab", "disk1/sub/extra.bin", "setup.msi"));
+    final AdvinstManifest.Entry cab = entries.get(1);
+    assertEquals(7, cab.getSize());
+    assertEquals(AdvinstDigest.sha256("cabinet".getBytes(StandardCharsets.UTF_8)), cab.getSha256());
+    assertEquals(0, entries.get(2).getSize());
+    assertEquals(AdvinstDigest.sha256(new byte[0]), entries.get(2).getSha256());
+  }
+
+  @Test
+  public void missingFolderHasNoEntries() throws Exception {
+    assertThat(new AdvinstManifest.Scan().invoke(new File(mTemp.getRoot(), "missing"), null), empty());
+  }
+
+  private static void write(final File file, final String content) throws Exception {
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,86 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+public class AdvinstNodeLimiterTest {
+
+  private final TaskListener mListener = new StreamTaskListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+  private final List<String> mOrder = Collections.synchronizedList(new ArrayList<String>());
+
+  @Test(timeout = 30000)
+  public void heavyStepIsNotOvertakenByLighterOnes() throws Exception {
+    final AdvinstNodeLimiter limiter = new AdvinstNodeLimiter("agent");
+    final AdvinstNodeLimiter.Permit first = limiter.acquire(4, 3, mListener);
+
+    final CountDownLatch heavyDone = new CountDownLatch(1);
+    final Thread heavy = start(limiter, 4, "heavy", 4, heavyDone);
+    awaitWaiting(heavy);
+    // One permit is free, but the light step arrived after the heavy one.
+    final Thread light = start(limiter, 4, "light", 1, new CountDownLatch(0));
+    awaitWaiting(light);
+    assertThat(mOrder, empty());
+
+    first.close();
+    while (mOrder.isEmpty()) {
+      Thread.sleep(10);
+    }
+    awaitWaiting(light);
+    assertThat(mOrder, contains("heavy"));
+
+    heavyDone.countDown();
+    heavy.join();
+    light.join();
+    assertThat(mOrder, contains("heavy", "light"));
+  }
+
+  @Test(timeout = 30000)
+  public void closingTwiceReleasesOnce() throws Exception {
+    final AdvinstNodeLimiter limiter = new AdvinstNodeLimiter("agent");
+    final AdvinstNodeLimiter.Permit first = limiter.acquire(2, 1, mListener);
+    final AdvinstNodeLimiter.Permit second = limiter.acquire(2, 1, mListener);
+    first.close();
+    first.close();
+
+    final Thread third = start(limiter, 2, "third", 2, new CountDownLatch(0));
+    awaitWaiting(third);
+    assertThat(mOrder, empty());
+
+    second.close();
+    third.join();
+    assertThat(mOrder, contains("third"));
+  }
+
+  private Thread start(final AdvinstNodeLimiter limiter, final int capacity, final String name, final int weight,
+      final CountDownLatch done) {
+    final Thread thread = new Thread(() -> {
+      try (AdvinstNodeLimiter.Permit permit = limiter.acquire(capacity, weight, mListener)) {
+        mOrder.add(name);
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, name);
+    thread.start();
+    return thread;
+  }
+
+  private static void awaitWaiting(final Thread thread) throws InterruptedException {
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+  }
+}
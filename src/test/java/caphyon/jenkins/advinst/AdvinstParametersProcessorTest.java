@@ -0,0 +1,87 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+
+public class AdvinstParametersProcessorTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  private FilePath mWorkspace;
+  private FilePath mAipPath;
+  private AdvinstParameters mParameters;
+
+  @Before
+  public void setUp() throws Exception {
+    final File aip = mTemp.newFile("setup.aip");
+    Files.write(aip.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n"
+        + "<DOCUMENT Type=\"Advanced Installer\" version=\"21.0\">\r\n"
+        + "  <COMPONENT cid=\"caphyon.advinst.msicomp.BuildComponent\">\r\n"
+        + "    <ROW BuildKey=\"DefaultBuild\" BuildName=\"DefaultBuild\"/>\r\n"
+        + "    <ROW BuildKey=\"x64\" BuildName=\"x64\"/>\r\n"
+        + "    <ROW BuildKey=\"arm64\" BuildName=\"arm64\"/>\r\n"
+        + "  </COMPONENT>\r\n"
+        + "</DOCUMENT>\r\n").getBytes(StandardCharsets.UTF_8));
+    mWorkspace = new FilePath(mTemp.getRoot());
+    mAipPath = new FilePath(aip);
+    mParameters = new AdvinstParameters();
+  }
+
+  @Test
+  public void emptyBuildListSelectsAllBuilds() throws Exception {
+    assertThat(getProcessor().getParallelBuilds(), contains("DefaultBuild", "x64", "arm64"));
+  }
+
+  @Test
+  public void allSelectsAllBuilds() throws Exception {
+    mParameters.set(AdvinstConsts.AdvinstParamAipBuild, "x64;All");
+    assertThat(getProcessor().getParallelBuilds(), contains("DefaultBuild", "x64", "arm64"));
+  }
+
+  @Test
+  public void buildListIsExpandedTrimmedAndDeduplicated() throws Exception {
+    mParameters.set(AdvinstConsts.AdvinstParamAipBuild, " arm64 ;;${ARCH}; arm64");
+    final AdvinstParametersProcessor processor = new AdvinstParametersProcessor(mParameters, mAipPath, mWorkspace,
+        new EnvVars("ARCH", "x64"));
+    assertThat(processor.getParallelBuilds(), contains("arm64", "x64"));
+  }
+
+  @Test(expected = AdvinstException.class)
+  public void unknownBuildIsRejected() throws Exception {
+    mParameters.set(AdvinstConsts.AdvinstParamAipBuild, "x64;x86");
+    getProcessor().getParallelBuilds();
+  }
+
+  @Test
+  public void editCommandsUseAnOutputSubfolderPerBuild() throws Exception {
+    mParameters.set(AdvinstConsts.AdvinstParamAipOutputFolder, "out");
+    mParameters.set(AdvinstConsts.AdvinstParamAipOutputName, "app");
+    mParameters.set(AdvinstConsts.AdvinstParamAipNoDigSig, true);
+    final FilePath outputFolder = mWorkspace.child("out");
+
+    assertThat(getProcessor().getParallelEditCommands(Arrays.asList("x64", "arm64")), contains(
+        "SetPackageName \"app\" -buildname \"x64\"",
+        "SetOutputLocation -buildname \"x64\" -path \"" + outputFolder.child("x64") + "\"",
+        "SetPackageName \"app\" -buildname \"arm64\"",
+        "SetOutputLocation -buildname \"arm64\" -path \"" + outputFolder.child("arm64") + "\"",
+        "ResetSig"));
+  }
+
+  private AdvinstParametersProcessor getProcessor() {
+    return new AdvinstParametersProcessor(mParameters, mAipPath, mWorkspace, new EnvVars());
+  }
+}
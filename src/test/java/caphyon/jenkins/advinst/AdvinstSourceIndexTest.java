@@ -0,0 +1,73 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AdvinstSourceIndexTest {
+
+  private static final String kAip = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n"
+      + "<DOCUMENT Type=\"Advanced Installer\" version=\"21.0\">\r\n"
+      + "  <COMPONENT cid=\"caphyon.advinst.msicomp.MsiFilesComponent\">\r\n"
+      + "    <ROW File=\"app.exe\" SourcePath=\"bin\\app.exe\"/>\r\n"
+      + "    <ROW File=\"missing.dll\" SourcePath=\"bin\\missing.dll\"/>\r\n"
+      + "    <ROW File=\"readme.txt\" SourcePath=\"&lt;AI_DOCS&gt;readme.txt\"/>\r\n"
+      + "  </COMPONENT>\r\n"
+      + "  <COMPONENT cid=\"caphyon.advinst.msicomp.MsiDirsComponent\">\r\n"
+      + "    <ROW Directory=\"data\" SourcePath=\"data\"/>\r\n"
+      + "  </COMPONENT>\r\n"
+      + "  <COMPONENT cid=\"caphyon.advinst.msicomp.MsiMergeModsComponent\">\r\n"
+      + "    <ROW Path=\"modules\\vcruntime.msm\"/>\r\n"
+      + "  </COMPONENT>\r\n"
+      + "</DOCUMENT>\r\n";
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  @Test
+  public void indexesFilesFoldersAndMergeModules() throws Exception {
+    final List<AdvinstSourceIndex.Entry> entries = AdvinstAipReader
+        .readSourceIndex(new ByteArrayInputStream(kAip.getBytes(StandardCharsets.UTF_8))).getEntries();
+
+    assertEquals(5, entries.size());
+    assertEquals(AdvinstSourceIndex.Kind.FILE, entries.get(0).getKind());
+    assertEquals("bin\\app.exe", entries.get(0).getPath());
+    assertFalse(entries.get(2).isResolvable());
+    assertEquals(AdvinstSourceIndex.Kind.FOLDER, entries.get(3).getKind());
+    assertEquals(AdvinstSourceIndex.Kind.MERGE_MODULE, entries.get(4).getKind());
+    assertEquals("modules\\vcruntime.msm", entries.get(4).getPath());
+    assertTrue(entries.get(4).isResolvable());
+  }
+
+  @Test
+  public void checkReportsTheMissingSources() throws Exception {
+    // The project uses Windows separators, which only resolve on Windows, so
+    // the check runs against a project using the separator of this platform.
+    final File aip = mTemp.newFile("setup.aip");
+    Files.write(aip.toPath(), kAip.replace("\\", File.separator).getBytes(StandardCharsets.UTF_8));
+    write(new File(mTemp.getRoot(), "bin/app.exe"));
+    mTemp.newFolder("data");
+
+    final List<String> missing = new AdvinstSourceIndex.Check().invoke(aip, null);
+
+    assertThat(missing, contains(new File(mTemp.getRoot(), "bin/missing.dll").getPath(),
+        new File(mTemp.getRoot(), "modules/vcruntime.msm").getPath()));
+  }
+
+  private static void write(final File file) throws Exception {
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), new byte[] { 1 });
+  }
+}
@@ -0,0 +1,75 @@
+package caphyon.jenkins.advinst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+
+public class AdvinstStagingTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  @Test
+  public void missingOutputFolderIsReplacedByTheStagingFolder() throws Exception {
+    final File staging = createStaging();
+    final File output = new File(mTemp.getRoot(), "share/output");
+
+    assertEquals(2, new AdvinstStaging.Publish(new FilePath(output)).invoke(staging, null).intValue());
+
+    assertFalse(staging.exists());
+    assertEquals("msi", read(new File(output, "app.msi")));
+    assertEquals("cab", read(new File(output, "disk1/data.cab")));
+  }
+
+  @Test
+  public void existingOutputFolderKeepsItsOtherFiles() throws Exception {
+    final File staging = createStaging();
+    final File output = mTemp.newFolder("output");
+    write(new File(output, "app.msi"), "old msi");
+    write(new File(output, "readme.txt"), "readme");
+
+    assertEquals(2, new AdvinstStaging.Publish(new FilePath(output)).invoke(staging, null).intValue());
+
+    assertFalse(staging.exists());
+    assertEquals("msi", read(new File(output, "app.msi")));
+    assertEquals("cab", read(new File(output, "disk1/data.cab")));
+    assertEquals("readme", read(new File(output, "readme.txt")));
+    assertEquals(3, output.list().length);
+  }
+
+  @Test
+  public void packageFilesAreEntryPoints() {
+    assertTrue(AdvinstStaging.isEntryPoint(Paths.get("out", "App.MSI")));
+    assertTrue(AdvinstStaging.isEntryPoint(Paths.get("setup.exe")));
+    assertTrue(AdvinstStaging.isEntryPoint(Paths.get("app.msixbundle")));
+    assertFalse(AdvinstStaging.isEntryPoint(Paths.get("disk1", "data.cab")));
+    assertFalse(AdvinstStaging.isEntryPoint(Paths.get("setup.exe.config")));
+  }
+
+  private File createStaging() throws Exception {
+    final File staging = mTemp.newFolder("staging");
+    write(new File(staging, "app.msi"), "msi");
+    write(new File(staging, "disk1/data.cab"), "cab");
+    return staging;
+  }
+
+  private static void write(final File file, final String content) throws Exception {
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(final File file) throws Exception {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+}
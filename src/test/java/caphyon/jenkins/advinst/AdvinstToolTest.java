@@ -0,0 +1,68 @@
+package caphyon.jenkins.advinst;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+
+public class AdvinstToolTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  @Test
+  public void createAicFileOnLocalWorkspace() throws Exception {
+    final FilePath workspace = new FilePath(mTemp.newFolder("ws"));
+    final List<String> commands = Arrays.asList("SetVersion 1.2.3", "SetProperty NAME=\"\u00e9\u4e2d\"", "Build");
+
+    final FilePath aicFile = AdvinstTool.createAicFile(workspace, commands);
+
+    final String expected = ";aic\r\nSetVersion 1.2.3\r\nSetProperty NAME=\"\u00e9\u4e2d\"\r\nBuild\r\n";
+    assertArrayEquals(expected.getBytes(StandardCharsets.UTF_16),
+        Files.readAllBytes(new File(aicFile.getRemote()).toPath()));
+  }
+
+  @Test
+  public void createAicFileWithCommandsFile() throws Exception {
+    final FilePath workspace = new FilePath(mTemp.newFolder("ws"));
+    final File commandsFile = mTemp.newFile("commands.txt");
+    Files.write(commandsFile.toPath(), "\uFEFFSetProperty A=${VALUE}\r\n\r\nAddFile APPDIR \"b\u00e9.txt\"\n"
+        .getBytes(StandardCharsets.UTF_8));
+    final EnvVars env = new EnvVars("VALUE", "42");
+
+    final FilePath aicFile = AdvinstTool.createAicFile(workspace, Arrays.asList("SetVersion 1.0", "Build"),
+        new AdvinstCommandsFile(new FilePath(commandsFile), env));
+
+    final String expected = ";aic\r\nSetVersion 1.0\r\nSetProperty A=42\r\nAddFile APPDIR \"b\u00e9.txt\"\r\nBuild\r\n";
+    assertArrayEquals(expected.getBytes(StandardCharsets.UTF_16),
+        Files.readAllBytes(new File(aicFile.getRemote()).toPath()));
+  }
+
+  @Test
+  public void writeAicFileEncodesTheCommandsOnTheNode() throws Exception {
+    final File commandsFile = mTemp.newFile("commands.txt");
+    Files.write(commandsFile.toPath(), "SetProperty A=${VALUE}\n".getBytes(StandardCharsets.UTF_8));
+    final File aicFile = mTemp.newFile("setup.aic");
+    final byte[] commands = ";aic\r\nSetVersion 1.0\r\nSetProperty NAME=\"\u00e9\u4e2d\"\r\n"
+        .getBytes(StandardCharsets.UTF_8);
+
+    new AdvinstTool.WriteAicFile(new ByteArrayInputStream(commands),
+        new AdvinstCommandsFile(new FilePath(commandsFile), new EnvVars("VALUE", "42")), Arrays.asList("Build"))
+        .invoke(aicFile, null);
+
+    final String expected = ";aic\r\nSetVersion 1.0\r\nSetProperty NAME=\"\u00e9\u4e2d\"\r\nSetProperty A=42\r\n"
+        + "Build\r\n";
+    assertArrayEquals(expected.getBytes(StandardCharsets.UTF_16), Files.readAllBytes(aicFile.toPath()));
+  }
+}
@@ -0,0 +1,64 @@
+package caphyon.jenkins.advinst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AdvinstTrendTest {
+
+  /** Default number of entries kept in a trend. */
+  private static final int kMaxEntries = 500;
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  @Test
+  public void slowBuildIsFlagged() throws Exception {
+    final File file = new File(mTemp.getRoot(), AdvinstTrend.kFileName);
+    for (int i = 1; i <= 5; i++) {
+      assertFalse(AdvinstTrend.append(file, i, i, 1000, -1, 3, "21.0", 20).isFlagged());
+    }
+
+    assertFalse(AdvinstTrend.append(file, 6, 6, 1150, -1, 3, "21.0", 20).isFlagged());
+    assertTrue(AdvinstTrend.append(file, 7, 7, 1300, -1, 3, "21.0", 20).isFlagged());
+    assertFalse(AdvinstTrend.append(file, 8, 8, 5000, -1, 3, "21.0", 0).isFlagged());
+  }
+
+  @Test
+  public void trendIsTrimmedToTheLatestEntries() throws Exception {
+    final File file = new File(mTemp.getRoot(), AdvinstTrend.kFileName);
+    final int builds = 2 * kMaxEntries + 10;
+    for (int i = 1; i <= builds; i++) {
+      AdvinstTrend.append(file, i, i, 1000, 2048, 3, "21.0", 0);
+      assertTrue(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size() <= 2 * kMaxEntries);
+    }
+
+    final List<AdvinstTrend.Entry> entries = AdvinstTrend.read(file, Integer.MAX_VALUE);
+    // Trimmed to the limit at build 2 * kMaxEntries + 1, then appended to.
+    assertEquals(kMaxEntries + 9, entries.size());
+    assertEquals(builds - kMaxEntries - 8, entries.get(0).getBuildNumber());
+    assertEquals(builds, entries.get(entries.size() - 1).getBuildNumber());
+  }
+
+  @Test
+  public void partialLinesAreSkipped() throws Exception {
+    final File file = new File(mTemp.getRoot(), AdvinstTrend.kFileName);
+    AdvinstTrend.append(file, 1, 1, 1000, 2048, 3, "21.0", 0);
+    Files.write(file.toPath(), "2,2,10".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    final List<AdvinstTrend.Entry> entries = AdvinstTrend.read(file, 10);
+    assertEquals(1, entries.size());
+    assertEquals(2048, entries.get(0).getPackageSize());
+  }
+}
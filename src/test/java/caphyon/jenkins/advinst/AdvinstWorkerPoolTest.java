@@ -0,0 +1,111 @@
+package caphyon.jenkins.advinst;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.EnvVars;
+import hudson.Functions;
+
+/**
+ * Runs {@link AdvinstWorker} as a worker process, with a shell script standing
+ * in for AdvancedInstaller.com, so the protocol is checked on Linux.
+ */
+public class AdvinstWorkerPoolTest {
+
+  @Rule
+  public TemporaryFolder mTemp = new TemporaryFolder();
+
+  private File mAdvinstCom;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeFalse(Functions.isWindows());
+    mAdvinstCom = mTemp.newFile("AdvancedInstaller.sh");
+    Files.write(mAdvinstCom.toPath(), ("#!/bin/sh\n"
+        + "echo \"args $*\"\n"
+        + "echo \"pwd $(pwd)\"\n"
+        + "echo \"var $ADVINST_TEST_VAR\"\n"
+        + "exit 3\n").getBytes(StandardCharsets.UTF_8));
+    mAdvinstCom.setExecutable(true);
+  }
+
+  @Test(timeout = 60000)
+  public void executeSendsEnvironmentAndWorkingDir() throws Exception {
+    final AdvinstWorkerConfig config = new AdvinstWorkerConfig(getWorkerCommand(), 50, 60000, 30000);
+    final File workingDir = mTemp.newFolder("ws");
+
+    for (int job = 0; job < 2; job++) {
+      // The second job reuses the worker after a health check.
+      final ByteArrayOutputStream log = new ByteArrayOutputStream();
+      final int exitCode = AdvinstWorkerPool.execute(config, UUID.randomUUID().toString(),
+          mAdvinstCom.getAbsolutePath(), "/p/app.aip", "/p/app.aic",
+          new EnvVars("ADVINST_TEST_VAR", "value " + job), workingDir.getAbsolutePath(), log);
+
+      final String output = new String(log.toByteArray(), StandardCharsets.UTF_8);
+      assertEquals(3, exitCode);
+      assertThat(output, containsString("args /execute /p/app.aip /p/app.aic\n"));
+      assertThat(output, containsString("pwd " + workingDir.getCanonicalPath() + "\n"));
+      assertThat(output, containsString("var value " + job + "\n"));
+    }
+  }
+
+  @Test(timeout = 60000, expected = AdvinstWorkerPool.WorkerUnavailableException.class)
+  public void silentWorkerIsUnavailable() throws Exception {
+    // Never answers the health check.
+    final AdvinstWorkerConfig config = new AdvinstWorkerConfig("sleep 60", 50, 60000, 500);
+    AdvinstWorkerPool.execute(config, UUID.randomUUID().toString(), mAdvinstCom.getAbsolutePath(), "/p/app.aip",
+        "/p/app.aic", new EnvVars(), mTemp.getRoot().getAbsolutePath(), new ByteArrayOutputStream());
+  }
+
+  @Test(timeout = 60000)
+  public void abortKillsTheAdvancedInstallerProcess() throws Exception {
+    final File pidFile = new File(mTemp.getRoot(), "advinst.pid");
+    Files.write(mAdvinstCom.toPath(), ("#!/bin/sh\n"
+        + "echo $$ > \"" + pidFile.getAbsolutePath() + "\"\n"
+        + "exec sleep 60\n").getBytes(StandardCharsets.UTF_8));
+    final AdvinstWorkerConfig config = new AdvinstWorkerConfig(getWorkerCommand(), 50, 60000, 30000);
+    final String jobId = UUID.randomUUID().toString();
+
+    final Thread job = new Thread(() -> {
+      try {
+        AdvinstWorkerPool.execute(config, jobId, mAdvinstCom.getAbsolutePath(), "/p/app.aip", "/p/app.aic",
+            new EnvVars(), mTemp.getRoot().getAbsolutePath(), new ByteArrayOutputStream());
+      } catch (Exception e) {
+        // The worker was killed.
+      }
+    });
+    job.start();
+    while (pidFile.length() == 0) {
+      Thread.sleep(10);
+    }
+    final long pid = Long.parseLong(new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.UTF_8).trim());
+
+    AdvinstWorkerPool.abort(jobId);
+    job.join();
+
+    // Without killing the descendants of the worker, it would run for a minute.
+    while (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static String getWorkerCommand() throws Exception {
+    final File java = new File(System.getProperty("java.home"), "bin/java");
+    final File classes = new File(AdvinstWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    return "\"" + java.getAbsolutePath() + "\" -cp \"" + classes.getAbsolutePath() + "\" "
+        + AdvinstWorker.class.getName();
+  }
+}